@@ -0,0 +1,82 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import os.Filesystem;
+
+/**
+ * Allocation cost on a fragmented disk. The disk is filled almost to the
+ * end and every other file deleted, leaving holes the size of a file; each
+ * operation then creates a file spanning several holes and deletes it again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+
+    @Param({ "16" })
+    public int diskMiB;
+
+    @Param({ "512", "4096" })
+    public int blockSize;
+
+    @Param({ "4096" })
+    public int rootDirSize;
+
+    @Param({ "fixed-4096", "small" })
+    public String sizes;
+
+    /** Size of the new file in holes it has to span */
+    @Param({ "8" })
+    public int spans;
+
+    private Filesystem fs;
+    private byte[] contents;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(Workload.SEED);
+        fs = Workload.format(diskMiB, blockSize, rootDirSize);
+        int[] sizes = Workload.sizes(this.sizes, rootDirSize - 1, random);
+
+        // fill to 90% of the disk, then punch holes
+        long limit = ((long) diskMiB << 20) * 9 / 10;
+        long bytes = 0;
+        int created = 0;
+        for (; created < sizes.length && bytes + sizes[created] < limit; created++) {
+            fs.newFile("file" + created, new byte[sizes[created]]);
+            bytes += sizes[created];
+        }
+        long freed = 0;
+        for (int i = 0; i < created; i += 2) {
+            fs.deleteFile("file" + i);
+            freed += sizes[i];
+        }
+        contents = new byte[(int) Math.max(1, spans * freed / Math.max(1, (created + 1) / 2))];
+        random.nextBytes(contents);
+    }
+
+    @Benchmark
+    public int createDelete() {
+        int index = fs.newFile("fragmented", contents);
+        fs.deleteFile(index);
+        return index;
+    }
+}
@@ -0,0 +1,96 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import os.Filesystem;
+
+/**
+ * File throughput on a disk kept half full: creating and deleting a file,
+ * and reading whole files by index and by name.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+
+    private static final int PICKS = 1 << 12;
+
+    @Param({ "64" })
+    public int diskMiB;
+
+    @Param({ "512", "4096" })
+    public int blockSize;
+
+    @Param({ "1024" })
+    public int rootDirSize;
+
+    @Param({ "fixed-4096", "uniform-65536", "small" })
+    public String sizes;
+
+    private Filesystem fs;
+    private byte[][] contents;
+    private int[] indexes;
+    private String[] names;
+    private int[] picks;
+    private byte[] buffer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(Workload.SEED);
+        fs = Workload.format(diskMiB, blockSize, rootDirSize);
+        contents = Workload.contents(Workload.sizes(sizes, 256, random), random);
+
+        // fill half the directory, or half the disk, whichever comes first
+        int files = rootDirSize / 2;
+        indexes = new int[files];
+        names = new String[files];
+        long bytes = 0;
+        int max = 0;
+        int n = 0;
+        for (; n < files && bytes < (long) diskMiB << 19; n++) {
+            byte[] c = contents[n % contents.length];
+            names[n] = "file" + n;
+            indexes[n] = fs.newFile(names[n], c);
+            bytes += c.length;
+            max = Math.max(max, c.length);
+        }
+        picks = Workload.picks(PICKS, n, random);
+        buffer = new byte[max];
+    }
+
+    @Benchmark
+    public int createDelete() {
+        byte[] c = contents[next++ & (contents.length - 1)];
+        int index = fs.newFile("new", c);
+        fs.deleteFile(index);
+        return index;
+    }
+
+    @Benchmark
+    public int readByIndex() {
+        return fs.readFile(indexes[picks[next++ & (PICKS - 1)]], buffer, 0);
+    }
+
+    @Benchmark
+    public int readByName() {
+        return fs.readFile(names[picks[next++ & (PICKS - 1)]], buffer, 0);
+    }
+}
@@ -0,0 +1,66 @@
+package bench;
+
+import hardware.HDD;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import os.Filesystem;
+import os.NullFS;
+import os.NullFSOptions;
+
+/**
+ * Time to format a disk, the disk itself being allocated beforehand, fully
+ * or zeroing only the meta-data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    @Param({ "16", "256" })
+    public int diskMiB;
+
+    @Param({ "512", "4096" })
+    public int blockSize;
+
+    @Param({ "1024", "16384" })
+    public int rootDirSize;
+
+    @Param({ "false", "true" })
+    public boolean quick;
+
+    private HDD hdd;
+
+    @Setup(Level.Trial)
+    public void quiet() {
+        Workload.quiet();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        hdd = new HDD(diskMiB << 20);
+    }
+
+    @Benchmark
+    public Filesystem format() {
+        NullFSOptions options = new NullFSOptions();
+        options.setQuickFormat(quick);
+        return NullFS.format(hdd, blockSize, rootDirSize, options);
+    }
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import hardware.HDD;
+import hardware.OffHeapHDD;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw disk transfers of one block at a random block position, on the heap
+ * image and on the segmented off-heap one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HDDBenchmark {
+
+    private static final int PICKS = 1 << 12;
+
+    @Param({ "64" })
+    public int diskMiB;
+
+    @Param({ "512", "4096", "65536" })
+    public int blockSize;
+
+    @Param({ "false", "true" })
+    public boolean offHeap;
+
+    private HDD hdd;
+    private byte[] block;
+    private long[] positions;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(Workload.SEED);
+        hdd = offHeap ? new OffHeapHDD((long) diskMiB << 20) : new HDD(diskMiB << 20);
+        block = new byte[blockSize];
+        random.nextBytes(block);
+        int[] picks = Workload.picks(PICKS, (int) (hdd.capacity() / blockSize), random);
+        positions = new long[PICKS];
+        for (int i = 0; i < PICKS; i++) {
+            positions[i] = (long) picks[i] * blockSize;
+        }
+    }
+
+    @Benchmark
+    public byte[] read() {
+        hdd.read(positions[next++ & (PICKS - 1)], block, 0, blockSize);
+        return block;
+    }
+
+    @Benchmark
+    public byte[] write() {
+        hdd.write(positions[next++ & (PICKS - 1)], block, 0, blockSize);
+        return block;
+    }
+
+    @Benchmark
+    public void fill() {
+        hdd.fill(positions[next++ & (PICKS - 1)], blockSize, (byte) 0);
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import os.Filesystem;
+
+/**
+ * Directory lookup in a full root directory of empty files: by name, by
+ * index, and for a name that is not there.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    private static final int PICKS = 1 << 12;
+
+    @Param({ "64" })
+    public int diskMiB;
+
+    @Param({ "512" })
+    public int blockSize;
+
+    @Param({ "256", "16384" })
+    public int rootDirSize;
+
+    private Filesystem fs;
+    private int[] indexes;
+    private String[] names;
+    private int[] picks;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fs = Workload.format(diskMiB, blockSize, rootDirSize);
+        indexes = new int[rootDirSize];
+        names = new String[rootDirSize];
+        for (int i = 0; i < rootDirSize; i++) {
+            names[i] = "file" + i;
+            indexes[i] = fs.newFile(names[i], new byte[0]);
+        }
+        picks = Workload.picks(PICKS, rootDirSize, new Random(Workload.SEED));
+    }
+
+    @Benchmark
+    public int byName() {
+        return fs.fileSize(names[picks[next++ & (PICKS - 1)]]);
+    }
+
+    @Benchmark
+    public int byIndex() {
+        return fs.fileSize(indexes[picks[next++ & (PICKS - 1)]]);
+    }
+
+    @Benchmark
+    public int missing() {
+        return fs.fileSize("no such file");
+    }
+}
@@ -0,0 +1,32 @@
+package bench;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: JMH's own command line, with results
+ * written as JSON to a time-stamped file by default so that runs can be kept
+ * and compared later.
+ */
+public final class Run {
+
+    private Run() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add(0, "json");
+            options.add(0, "-rf");
+        }
+        if (!options.contains("-rff")) {
+            String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            options.add(0, "jmh-result-" + stamp + ".json");
+            options.add(0, "-rff");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+    }
+}
@@ -0,0 +1,101 @@
+package bench;
+
+import hardware.HDD;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import os.Filesystem;
+import os.NullFS;
+
+/**
+ * Set-up shared by the benchmarks: file size distributions, file contents,
+ * and a way to keep the filesystem's console messages out of the
+ * measurements.
+ */
+final class Workload {
+
+    /** Seed for every random choice, so each run sees the same workload */
+    static final long SEED = 42;
+
+    private Workload() {
+    }
+
+    /**
+     * File sizes drawn from a named distribution:
+     * "fixed-N" is always N bytes, "uniform-N" is 0 to N bytes, and "small"
+     * is log-uniform from 16 bytes to 1 MiB, so most files fit in a few
+     * blocks and a few are large.
+     * @param distribution
+     * @param count
+     * @param random
+     * @return the sizes
+     */
+    static int[] sizes(String distribution, int count, Random random) {
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (distribution.startsWith("fixed-")) {
+                sizes[i] = Integer.parseInt(distribution.substring(6));
+            } else if (distribution.startsWith("uniform-")) {
+                sizes[i] = random.nextInt(Integer.parseInt(distribution.substring(8)) + 1);
+            } else if (distribution.equals("small")) {
+                sizes[i] = (int) Math.pow(2, 4 + random.nextDouble() * 16);
+            } else {
+                throw new IllegalArgumentException("unknown size distribution " + distribution);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Random contents for each size
+     * @param sizes
+     * @param random
+     * @return
+     */
+    static byte[][] contents(int[] sizes, Random random) {
+        byte[][] contents = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            contents[i] = new byte[sizes[i]];
+            random.nextBytes(contents[i]);
+        }
+        return contents;
+    }
+
+    /**
+     * Random picks from [0, bound), precomputed so that choosing costs
+     * nothing inside a benchmark
+     * @param count
+     * @param bound
+     * @param random
+     * @return
+     */
+    static int[] picks(int count, int bound, Random random) {
+        int[] picks = new int[count];
+        for (int i = 0; i < count; i++) {
+            picks[i] = random.nextInt(bound);
+        }
+        return picks;
+    }
+
+    /**
+     * Format a disk of diskMiB MiB, with console output discarded
+     * @param diskMiB
+     * @param blockSize
+     * @param rootDirSize
+     * @return
+     */
+    static Filesystem format(int diskMiB, int blockSize, int rootDirSize) {
+        quiet();
+        return NullFS.format(new HDD(diskMiB << 20), blockSize, rootDirSize);
+    }
+
+    /**
+     * Discard everything printed to System.out from now on; the filesystem
+     * reports format details and failures there
+     */
+    static void quiet() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
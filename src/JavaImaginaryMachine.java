@@ -49,6 +49,7 @@ public class JavaImaginaryMachine {
         //fs.dumpContents();
         int addrLong = fs.newFile("isk longest file you'll see on disk longest file you'll see on disk".getBytes());
         fs.dumpContents();
+        System.out.println(fs.fragmentationReport());
         System.out.println();
     }
     
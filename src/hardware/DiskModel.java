@@ -0,0 +1,24 @@
+package hardware;
+
+/**
+ * How long a disk takes to carry out a transfer, for simulating a device
+ * that the image underneath does not resemble. A DiskTimer feeds a model
+ * the transfers of a disk and adds up the times it gives.
+ */
+public interface DiskModel {
+
+    /**
+     * @param head disk position the previous transfer ended at
+     * @param pos disk position this transfer starts at
+     * @param len bytes transferred
+     * @param write false for a read
+     * @param now simulated time the transfer is issued at, in nanoseconds
+     * @return simulated nanoseconds from issuing the transfer to its end
+     */
+    long transferNanos(long head, long pos, long len, boolean write, long now);
+
+    /**
+     * @return simulated nanoseconds a force costs
+     */
+    long forceNanos();
+}
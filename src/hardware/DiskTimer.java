@@ -0,0 +1,82 @@
+package hardware;
+
+/**
+ * Runs the transfers of a disk through a DiskModel, adding up the simulated
+ * time they would take on the modelled device. Set it as the disk's
+ * recorder; another recorder may be chained behind it.
+ * 
+ * The modelled device carries out one transfer at a time, in the order the
+ * transfers are reported, so concurrent transfers are timed one after the
+ * other. Time spent by the program between transfers is not counted.
+ */
+public class DiskTimer implements IORecorder {
+
+    private final DiskModel model;
+    private final IORecorder next;
+    private long head;
+    private long elapsed;
+    private long transfers;
+
+    public DiskTimer(DiskModel model) {
+        this(model, null);
+    }
+
+    /**
+     * @param model
+     * @param next also told of every transfer, or null
+     */
+    public DiskTimer(DiskModel model, IORecorder next) {
+        this.model = model;
+        this.next = next;
+    }
+
+    @Override
+    public void transfer(long pos, long len, boolean write) {
+        synchronized (this) {
+            elapsed += model.transferNanos(head, pos, len, write, elapsed);
+            head = pos + len;
+            transfers++;
+        }
+        if (next != null) {
+            next.transfer(pos, len, write);
+        }
+    }
+
+    @Override
+    public void force() {
+        synchronized (this) {
+            elapsed += model.forceNanos();
+        }
+        if (next != null) {
+            next.force();
+        }
+    }
+
+    /**
+     * Simulated time of every transfer and force so far
+     */
+    public synchronized long getElapsedNanos() {
+        return elapsed;
+    }
+
+    public synchronized long getTransfers() {
+        return transfers;
+    }
+
+    public DiskModel getModel() {
+        return model;
+    }
+
+    /**
+     * Start the clock again from zero; the head stays where it is
+     */
+    public synchronized void reset() {
+        elapsed = 0;
+        transfers = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return transfers + " transfers in " + elapsed + " simulated ns";
+    }
+}
@@ -1,19 +1,34 @@
 package hardware;
 
 //import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Provided for reference, the HDD class mimics operations available from a
  * basic disk controller.
  * 
- * Framework code: no modification made.
+ * Besides the single byte read head, the controller offers positional bulk
+ * transfers which neither use nor move the read head.
+ * 
+ * The positional transfers keep no state between calls, so any number of
+ * threads may issue them at once; writes to overlapping ranges are not
+ * ordered against each other, callers that need that must serialize them.
+ * The read head is a single shared position and is for one thread only.
+ * 
+ * A recorder set with setRecorder() is told of every transfer; without one
+ * the bookkeeping costs a field read per call.
+ * 
+ * Disks are addressed with long positions. This heap image is a single
+ * array and so holds at most 2 GB; OffHeapHDD and MappedHDD go beyond that.
  */
 public class HDD {
 
     //private static final File DISK_IMAGE = new File("default.bin");
     private byte[] data;
-    private int size;
-    private int index;
+    protected long size;
+    protected long index;
+    private volatile IORecorder recorder;
 
     /**
      * Create a HDD image from byte array
@@ -35,13 +50,24 @@ public class HDD {
         this.index = 0;
     }
 
+    /**
+     * For subclasses that keep the disk contents somewhere other than the
+     * heap; they must set size and override every data access method.
+     */
+    protected HDD() {
+        this.data = null;
+        this.size = 0;
+        this.index = 0;
+    }
+
     /**
      * Write byte b to current position of read head, increment read head
      * afterward.
      * @param b
      */
     public void write(byte b) {
-        data[index++] = b;
+        record(index, 1, true);
+        data[(int) index++] = b;
     }
 
     /**
@@ -49,7 +75,8 @@ public class HDD {
      * @return
      */
     public byte read() {
-        return data[index++];
+        record(index, 1, false);
+        return data[(int) index++];
     }
 
     /**
@@ -57,7 +84,7 @@ public class HDD {
      * space!
      * @return
      */
-    public int remaining() {
+    public long remaining() {
         return size - index;
     }
 
@@ -72,7 +99,7 @@ public class HDD {
      * Move read head to specified position
      * @param index
      */
-    public void seek(int index) {
+    public void seek(long index) {
         this.index = index;
     }
 
@@ -80,9 +107,128 @@ public class HDD {
      * Total size of disk
      * @return size in bytes
      */
-    public int capacity() {
+    public long capacity() {
         return size;
     }
+
+    /**
+     * Copy len bytes starting at disk position pos into dst[off..off+len).
+     * The read head is not moved.
+     * @param pos disk position in bytes
+     * @param dst
+     * @param off
+     * @param len
+     */
+    public void read(long pos, byte[] dst, int off, int len) {
+        checkRange(pos, len);
+        record(pos, len, false);
+        System.arraycopy(data, (int) pos, dst, off, len);
+    }
+
+    /**
+     * Copy len bytes from src[off..off+len) onto the disk starting at pos.
+     * The read head is not moved.
+     * @param pos disk position in bytes
+     * @param src
+     * @param off
+     * @param len
+     */
+    public void write(long pos, byte[] src, int off, int len) {
+        checkRange(pos, len);
+        record(pos, len, true);
+        System.arraycopy(src, off, data, (int) pos, len);
+    }
+
+    /**
+     * Fill len bytes starting at pos with value. The read head is not moved.
+     * @param pos disk position in bytes
+     * @param len
+     * @param value
+     */
+    public void fill(long pos, long len, byte value) {
+        checkRange(pos, len);
+        record(pos, len, true);
+        Arrays.fill(data, (int) pos, (int) (pos + len), value);
+    }
+
+    /**
+     * Read dst.remaining() bytes starting at pos into dst, advancing the
+     * buffer position. The read head is not moved.
+     * @param pos disk position in bytes
+     * @param dst
+     */
+    public void read(long pos, ByteBuffer dst) {
+        int len = dst.remaining();
+        checkRange(pos, len);
+        record(pos, len, false);
+        dst.put(data, (int) pos, len);
+    }
+
+    /**
+     * Write src.remaining() bytes from src onto the disk starting at pos,
+     * advancing the buffer position. The read head is not moved.
+     * @param pos disk position in bytes
+     * @param src
+     */
+    public void write(long pos, ByteBuffer src) {
+        int len = src.remaining();
+        checkRange(pos, len);
+        record(pos, len, true);
+        src.get(data, (int) pos, len);
+    }
+
+    /**
+     * Read-only view of len bytes starting at pos, sharing the disk storage
+     * rather than copying it. The view reflects later writes to that range.
+     * @param pos disk position in bytes
+     * @param len
+     * @return the view, or null if this disk cannot provide one for the range
+     */
+    public ByteBuffer view(long pos, int len) {
+        checkRange(pos, len);
+        return ByteBuffer.wrap(data, (int) pos, len).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Flush written data to the backing store. A heap image has nothing to
+     * flush; file backed images override this.
+     */
+    public void force() {
+        IORecorder r = recorder;
+        if (r != null) {
+            r.force();
+        }
+    }
+
+    /**
+     * Report transfers to recorder from now on
+     * @param recorder null to stop reporting
+     */
+    public void setRecorder(IORecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public IORecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Tell the recorder, if any, of a transfer. Subclasses overriding the
+     * transfer methods call it once per call.
+     */
+    protected final void record(long pos, long len, boolean write) {
+        IORecorder r = recorder;
+        if (r != null) {
+            r.transfer(pos, len, write);
+        }
+    }
+
+    protected void checkRange(long pos, long len) {
+        if (pos < 0 || len < 0 || pos + len > size) {
+            throw new IndexOutOfBoundsException("disk range [" + pos + ", "
+                    + (pos + len) + ") outside capacity " + size);
+        }
+    }
     
 /*
  * The following requires Java 1.7 or above, and is not necessary, 
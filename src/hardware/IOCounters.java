@@ -0,0 +1,100 @@
+package hardware;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the calls and bytes of a disk's transfers, and models its head: a
+ * transfer that does not start where the previous one ended is a seek, over
+ * the distance between the two. Safe for concurrent use; the counters are
+ * read without stopping the disk, so they may be a transfer apart from each
+ * other.
+ */
+public class IOCounters implements IORecorder, IOCountersMBean {
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder seeks = new LongAdder();
+    private final LongAdder seekDistance = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private final AtomicLong head = new AtomicLong();
+
+    @Override
+    public void transfer(long pos, long len, boolean write) {
+        if (write) {
+            writes.increment();
+            bytesWritten.add(len);
+        } else {
+            reads.increment();
+            bytesRead.add(len);
+        }
+        long last = head.getAndSet(pos + len);
+        if (last != pos) {
+            seeks.increment();
+            seekDistance.add(Math.abs(pos - last));
+        }
+    }
+
+    @Override
+    public void force() {
+        forces.increment();
+    }
+
+    /** Read calls, each counted once however many bytes it moves */
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    /** Write and fill calls */
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getSeeks() {
+        return seeks.sum();
+    }
+
+    /** Bytes the head moved over in all seeks */
+    @Override
+    public long getSeekDistance() {
+        return seekDistance.sum();
+    }
+
+    @Override
+    public long getForces() {
+        return forces.sum();
+    }
+
+    @Override
+    public void reset() {
+        reads.reset();
+        writes.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        seeks.reset();
+        seekDistance.reset();
+        forces.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "reads " + getReads() + " (" + getBytesRead() + " bytes), writes " + getWrites() + " ("
+                + getBytesWritten() + " bytes), seeks " + getSeeks() + " over " + getSeekDistance() + " bytes, forces "
+                + getForces();
+    }
+}
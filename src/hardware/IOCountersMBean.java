@@ -0,0 +1,23 @@
+package hardware;
+
+/**
+ * JMX view of IOCounters
+ */
+public interface IOCountersMBean {
+
+    long getReads();
+
+    long getWrites();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getSeeks();
+
+    long getSeekDistance();
+
+    long getForces();
+
+    void reset();
+}
@@ -0,0 +1,20 @@
+package hardware;
+
+/**
+ * Receives every transfer a disk makes, see HDD.setRecorder. Called on the
+ * thread doing the transfer, possibly from several threads at once.
+ */
+public interface IORecorder {
+
+    /**
+     * @param pos disk position in bytes
+     * @param len bytes transferred
+     * @param write false for a read
+     */
+    void transfer(long pos, long len, boolean write);
+
+    /**
+     * The disk was asked to flush to its backing store
+     */
+    void force();
+}
@@ -0,0 +1,20 @@
+package hardware;
+
+/**
+ * The order in which a QueuedHDD sends its queued writes to the disk
+ */
+public enum IOScheduler {
+    /** in the order they were queued */
+    FIFO,
+    /**
+     * elevator: the next one onwards from the head in the direction it is
+     * moving, turning back when there is none
+     */
+    SCAN,
+    /**
+     * the next one onwards from the head, going back to the lowest position
+     * when there is none, so the disk is always swept upwards; a request
+     * passed over by the expiry number of dispatches goes first
+     */
+    DEADLINE
+}
@@ -0,0 +1,98 @@
+package hardware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A HDD whose image lives in a file and is memory mapped rather than copied
+ * onto the heap. The image is mapped as a number of fixed size segments, so
+ * the OS page cache decides what is resident and nothing is read up front,
+ * and the image may be larger than 2 GB.
+ * 
+ * Writes reach the file when the OS decides to write back dirty pages; call
+ * force() for an explicit sync point.
+ */
+public class MappedHDD extends SegmentedHDD {
+
+    /** Default mapping segment, 256MB */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 28;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    /**
+     * Open an existing image file, the disk size is the file length.
+     * @param image
+     * @throws IOException
+     */
+    public MappedHDD(File image) throws IOException {
+        this(image, image.length(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open or create an image file of the given size. A shorter file is
+     * extended with zeros, existing contents are kept.
+     * @param image
+     * @param size in bytes
+     * @throws IOException
+     */
+    public MappedHDD(File image, long size) throws IOException {
+        this(image, size, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open or create an image file of the given size, mapped in segments of
+     * segmentSize bytes.
+     * @param image
+     * @param size in bytes
+     * @param segmentSize in bytes, must be a power of two
+     * @throws IOException
+     */
+    public MappedHDD(File image, long size, int segmentSize) throws IOException {
+        super(size, segmentSize);
+        this.file = new RandomAccessFile(image, "rw");
+        try {
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            this.channel = file.getChannel();
+
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentSize, segmentLength(i));
+            }
+        } catch (IOException | RuntimeException e) {
+            // closing the file closes its channel too
+            try {
+                file.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Write every dirty page of every segment back to the image file.
+     */
+    @Override
+    public void force() {
+        super.force();
+        for (ByteBuffer seg : segments) {
+            ((MappedByteBuffer) seg).force();
+        }
+    }
+
+    /**
+     * Sync and release the image file. The disk must not be used afterwards.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        force();
+        channel.close();
+        file.close();
+    }
+}
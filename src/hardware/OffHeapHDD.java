@@ -0,0 +1,43 @@
+package hardware;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A blank HDD image held in direct ByteBuffers, outside the Java heap. The
+ * image may be far larger than 2 GB, and the garbage collector neither
+ * copies nor scans it. The memory counts against -XX:MaxDirectMemorySize,
+ * which has to be raised for images larger than the heap limit, and is
+ * returned once the disk is no longer reachable.
+ */
+public class OffHeapHDD extends SegmentedHDD {
+
+    /** Default segment, 64MB */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 26;
+
+    /**
+     * @param size in bytes
+     */
+    public OffHeapHDD(long size) {
+        this(size, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param size in bytes
+     * @param segmentSize in bytes, must be a power of two
+     */
+    public OffHeapHDD(long size, int segmentSize) {
+        super(size, segmentSize);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect((int) segmentLength(i));
+        }
+    }
+
+    /**
+     * Copy of a disk image into direct memory
+     * @param data
+     */
+    public OffHeapHDD(byte[] data) {
+        this(data.length);
+        write(0, data, 0, data.length);
+    }
+}
@@ -0,0 +1,285 @@
+package hardware;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Request queue in front of a disk, as a controller with command queueing
+ * would keep. Writes are queued rather than carried out; a write that
+ * overlaps or touches one already queued is merged with it, the newer bytes
+ * winning. When more than depth requests are waiting, the scheduler picks
+ * one to send to the disk. force() sends all of them, in scheduler order,
+ * before forcing the disk.
+ * 
+ * Reads are carried out at once, after any queued write they overlap, so
+ * they always see the latest data. Queued writes would not show in a view,
+ * so none is offered.
+ * 
+ * Paired with a DiskTimer on the disk below, this shows what merging and
+ * reordering would save on a rotating disk. Every transfer holds the queue
+ * lock, so the queue serializes the disk.
+ */
+public class QueuedHDD extends HDD {
+
+    private static class Request {
+        final long pos;
+        final byte[] data;
+        final long sequence;   // order of arrival of the oldest write merged in
+        final long arrival;    // dispatches made before that write was queued
+
+        Request(long pos, byte[] data, long sequence, long arrival) {
+            this.pos = pos;
+            this.data = data;
+            this.sequence = sequence;
+            this.arrival = arrival;
+        }
+    }
+
+    private final HDD device;
+    private final IOScheduler scheduler;
+    private final int depth;
+    private final int expire;
+
+    // queued writes, non-overlapping and not touching, by disk position
+    private final TreeMap<Long, Request> queue = new TreeMap<Long, Request>();
+    private long head;
+    private boolean ascending = true;
+    private long sequence;
+
+    private long requests;
+    private long merges;
+    private long dispatches;
+    private long expired;
+
+    /**
+     * A queue whose DEADLINE expiry is twice its depth
+     * @param device the disk
+     * @param scheduler
+     * @param depth requests held before one is sent to the disk, 0 to send
+     * each at once
+     */
+    public QueuedHDD(HDD device, IOScheduler scheduler, int depth) {
+        this(device, scheduler, depth, 2 * depth);
+    }
+
+    /**
+     * @param device the disk
+     * @param scheduler
+     * @param depth requests held before one is sent to the disk, 0 to send
+     * each at once
+     * @param expire for DEADLINE, dispatches a request may be passed over by
+     */
+    public QueuedHDD(HDD device, IOScheduler scheduler, int depth, int expire) {
+        if (scheduler == null || depth < 0 || expire < 0) {
+            throw new IllegalArgumentException("scheduler required, depth and expiry must not be negative");
+        }
+        this.device = device;
+        this.scheduler = scheduler;
+        this.depth = depth;
+        this.expire = expire;
+        this.size = device.capacity();
+    }
+
+    @Override
+    public void write(byte b) {
+        write(index, new byte[] { b }, 0, 1);
+        index++;
+    }
+
+    @Override
+    public byte read() {
+        byte[] b = new byte[1];
+        read(index, b, 0, 1);
+        index++;
+        return b[0];
+    }
+
+    @Override
+    public synchronized void read(long pos, byte[] dst, int off, int len) {
+        checkRange(pos, len);
+        drain(pos, len);
+        device.read(pos, dst, off, len);
+        head = pos + len;
+    }
+
+    @Override
+    public synchronized void write(long pos, byte[] src, int off, int len) {
+        checkRange(pos, len);
+        byte[] copy = new byte[len];
+        System.arraycopy(src, off, copy, 0, len);
+        enqueue(pos, copy);
+    }
+
+    /**
+     * Fills are sent to the disk at once, after the queued writes they
+     * overlap
+     */
+    @Override
+    public synchronized void fill(long pos, long len, byte value) {
+        checkRange(pos, len);
+        drain(pos, len);
+        device.fill(pos, len, value);
+        head = pos + len;
+    }
+
+    @Override
+    public void read(long pos, ByteBuffer dst) {
+        byte[] b = new byte[dst.remaining()];
+        read(pos, b, 0, b.length);
+        dst.put(b);
+    }
+
+    @Override
+    public void write(long pos, ByteBuffer src) {
+        byte[] b = new byte[src.remaining()];
+        src.get(b);
+        write(pos, b, 0, b.length);
+    }
+
+    @Override
+    public ByteBuffer view(long pos, int len) {
+        return null;
+    }
+
+    @Override
+    public void force() {
+        synchronized (this) {
+            while (!queue.isEmpty()) {
+                dispatch(next());
+            }
+        }
+        device.force();
+    }
+
+    /** Writes queued, before merging */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /** Queued requests a later write was merged into */
+    public synchronized long getMerges() {
+        return merges;
+    }
+
+    /** Transfers sent to the disk for queued writes */
+    public synchronized long getDispatches() {
+        return dispatches;
+    }
+
+    /** Requests DEADLINE sent out of SCAN order because they expired */
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public IOScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Queue a write, merging it with the requests it overlaps or touches,
+     * then dispatch until no more than depth are waiting.
+     */
+    private void enqueue(long pos, byte[] data) {
+        long from = pos;
+        long to = pos + data.length;
+        long seq = sequence++;
+        long arrival = dispatches;
+        Map.Entry<Long, Request> before = queue.floorEntry(pos);
+        if (before != null && before.getKey() + before.getValue().data.length >= pos) {
+            from = before.getKey();
+        }
+        SortedMap<Long, Request> touched = queue.subMap(from, true, to, true);
+        if (!touched.isEmpty()) {
+            Request last = touched.get(touched.lastKey());
+            to = Math.max(to, last.pos + last.data.length);
+        }
+        byte[] merged = data;
+        if (from != pos || to != pos + data.length) {
+            merged = new byte[(int) (to - from)];
+            for (Request r : touched.values()) {
+                System.arraycopy(r.data, 0, merged, (int) (r.pos - from), r.data.length);
+            }
+            System.arraycopy(data, 0, merged, (int) (pos - from), data.length);
+        }
+        for (Request r : touched.values()) {
+            seq = Math.min(seq, r.sequence);
+            arrival = Math.min(arrival, r.arrival);
+        }
+        requests++;
+        merges += touched.size();
+        touched.clear();
+        queue.put(from, new Request(from, merged, seq, arrival));
+        while (queue.size() > depth) {
+            dispatch(next());
+        }
+    }
+
+    /**
+     * The request the scheduler sends next; the queue must not be empty
+     */
+    private Request next() {
+        if (scheduler == IOScheduler.FIFO) {
+            return oldest();
+        }
+        if (scheduler == IOScheduler.DEADLINE) {
+            Request r = oldest();
+            if (dispatches - r.arrival >= expire) {
+                expired++;
+                return r;
+            }
+            Map.Entry<Long, Request> e = queue.ceilingEntry(head);
+            return (e != null ? e : queue.firstEntry()).getValue();
+        }
+        Map.Entry<Long, Request> e = ascending ? queue.ceilingEntry(head) : queue.lowerEntry(head);
+        if (e == null) {
+            ascending = !ascending;
+            e = ascending ? queue.ceilingEntry(head) : queue.lowerEntry(head);
+        }
+        return e.getValue();
+    }
+
+    private Request oldest() {
+        Request oldest = null;
+        for (Request r : queue.values()) {
+            if (oldest == null || r.sequence < oldest.sequence) {
+                oldest = r;
+            }
+        }
+        return oldest;
+    }
+
+    private void dispatch(Request r) {
+        queue.remove(r.pos);
+        device.write(r.pos, r.data, 0, r.data.length);
+        head = r.pos + r.data.length;
+        dispatches++;
+    }
+
+    /**
+     * Send the queued writes overlapping [pos, pos + len) to the disk
+     */
+    private void drain(long pos, long len) {
+        if (queue.isEmpty()) {
+            return;
+        }
+        Long from = queue.floorKey(pos);
+        for (Request r : new ArrayList<Request>(queue.subMap(from == null ? pos : from, true, pos + len, false).values())) {
+            if (r.pos + r.data.length > pos) {
+                dispatch(r);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return scheduler + " queue of " + depth + ": " + requests + " writes, " + merges + " merged, " + dispatches
+                + " dispatched, " + expired + " expired, " + queue.size() + " waiting";
+    }
+}
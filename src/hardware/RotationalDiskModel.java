@@ -0,0 +1,116 @@
+package hardware;
+
+/**
+ * A spinning disk with one head: a transfer waits for the head to seek to
+ * the track, then for the platter to bring the position under the head, and
+ * then streams at the rate one track passes by.
+ * 
+ * The disk is a sequence of tracks of trackBytes each. Seeking over n
+ * tracks takes trackToTrack for one track, growing with the square root of
+ * n up to fullStroke for the whole disk. The platter turns once per
+ * 60 / rpm seconds, and a position's angle is its offset within its track,
+ * so the rotational wait follows from the simulated time. A transfer that
+ * starts where the previous one ended pays for the streaming only.
+ */
+public class RotationalDiskModel implements DiskModel {
+
+    private final long tracks;
+    private final int trackBytes;
+    private final long rotationNanos;
+    private final long trackToTrackNanos;
+    private final long fullStrokeNanos;
+    private final long forceNanos;
+
+    /**
+     * @param capacity disk size in bytes
+     * @param rpm platter revolutions per minute
+     * @param trackBytes bytes per track; with rpm this gives the transfer
+     * rate, trackBytes * rpm / 60 bytes per second
+     * @param trackToTrackNanos seek time to the next track
+     * @param fullStrokeNanos seek time over the whole disk
+     * @param forceNanos cost of a force
+     */
+    public RotationalDiskModel(long capacity, int rpm, int trackBytes, long trackToTrackNanos, long fullStrokeNanos,
+            long forceNanos) {
+        if (capacity <= 0 || rpm <= 0 || trackBytes <= 0 || trackToTrackNanos < 0
+                || fullStrokeNanos < trackToTrackNanos || forceNanos < 0) {
+            throw new IllegalArgumentException("disk model parameters out of range");
+        }
+        this.tracks = (capacity + trackBytes - 1) / trackBytes;
+        this.trackBytes = trackBytes;
+        this.rotationNanos = 60000000000L / rpm;
+        this.trackToTrackNanos = trackToTrackNanos;
+        this.fullStrokeNanos = fullStrokeNanos;
+        this.forceNanos = forceNanos;
+    }
+
+    /**
+     * A 7200 rpm desktop disk: 1 MiB tracks (125 MiB/s), 1 ms track to
+     * track, 15 ms full stroke, and forces that cost one revolution
+     * @param capacity disk size in bytes
+     */
+    public static RotationalDiskModel desktop(long capacity) {
+        return new RotationalDiskModel(capacity, 7200, 1 << 20, 1000000L, 15000000L, 60000000000L / 7200);
+    }
+
+    @Override
+    public long transferNanos(long head, long pos, long len, boolean write, long now) {
+        if (head == pos) {
+            return streamNanos(len);
+        }
+        long seek = seekNanos(Math.abs(pos / trackBytes - head / trackBytes));
+        return seek + rotationalNanos(pos, now + seek) + streamNanos(len);
+    }
+
+    @Override
+    public long forceNanos() {
+        return forceNanos;
+    }
+
+    /**
+     * @param distance tracks crossed
+     * @return time to move the head over them
+     */
+    public long seekNanos(long distance) {
+        if (distance == 0) {
+            return 0;
+        }
+        double fraction = tracks > 1 ? Math.sqrt((double) (distance - 1) / (tracks - 1)) : 0;
+        return trackToTrackNanos + (long) ((fullStrokeNanos - trackToTrackNanos) * fraction);
+    }
+
+    /**
+     * @param pos disk position
+     * @param time simulated time the head is over the track
+     * @return time until pos is under the head
+     */
+    public long rotationalNanos(long pos, long time) {
+        long target = pos % trackBytes * rotationNanos / trackBytes;
+        return ((target - time % rotationNanos) % rotationNanos + rotationNanos) % rotationNanos;
+    }
+
+    /**
+     * @param len bytes
+     * @return time for len bytes to pass under the head
+     */
+    public long streamNanos(long len) {
+        return len * rotationNanos / trackBytes;
+    }
+
+    public long getRotationNanos() {
+        return rotationNanos;
+    }
+
+    /**
+     * Sustained transfer rate, in bytes per second
+     */
+    public long getBytesPerSecond() {
+        return trackBytes * 1000000000L / rotationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "rotational disk, " + tracks + " tracks of " + trackBytes + " bytes, " + 60000000000L / rotationNanos
+                + " rpm, seek " + trackToTrackNanos + ".." + fullStrokeNanos + " ns";
+    }
+}
@@ -0,0 +1,175 @@
+package hardware;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A HDD whose contents are held in ByteBuffers of a fixed power of two size,
+ * so the disk is not bounded by the 2 GB of a single buffer or array. A
+ * position selects its segment with a shift and its offset with a mask;
+ * transfers crossing a segment boundary are split.
+ * 
+ * Subclasses provide the segments: the constructor sizes the array, and
+ * the subclass constructor fills every slot before the disk is used.
+ */
+public abstract class SegmentedHDD extends HDD {
+
+    protected final ByteBuffer[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+
+    /**
+     * @param size in bytes
+     * @param segmentSize in bytes, must be a power of two
+     */
+    protected SegmentedHDD(long size, int segmentSize) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("unsupported disk size " + size);
+        }
+        if (segmentSize <= 0 || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("segment size must be a power of two: " + segmentSize);
+        }
+        long count = (size + segmentSize - 1) / segmentSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many segments of " + segmentSize + " bytes for " + size);
+        }
+        this.size = size;
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        this.segmentMask = segmentSize - 1;
+        this.segments = new ByteBuffer[(int) count];
+    }
+
+    /**
+     * @return bytes in each segment but possibly the last
+     */
+    public int segmentSize() {
+        return segmentMask + 1;
+    }
+
+    /**
+     * @param i segment number
+     * @return the number of bytes segment i must hold
+     */
+    protected long segmentLength(int i) {
+        return Math.min(segmentMask + 1, size - ((long) i << segmentShift));
+    }
+
+    @Override
+    public void write(byte b) {
+        record(index, 1, true);
+        segments[(int) (index >>> segmentShift)].put((int) (index & segmentMask), b);
+        index++;
+    }
+
+    @Override
+    public byte read() {
+        record(index, 1, false);
+        byte b = segments[(int) (index >>> segmentShift)].get((int) (index & segmentMask));
+        index++;
+        return b;
+    }
+
+    @Override
+    public void read(long pos, byte[] dst, int off, int len) {
+        checkRange(pos, len);
+        record(pos, len, false);
+        while (len > 0) {
+            ByteBuffer seg = segment(pos);
+            int n = Math.min(len, seg.remaining());
+            seg.get(dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(long pos, byte[] src, int off, int len) {
+        checkRange(pos, len);
+        record(pos, len, true);
+        put(pos, src, off, len);
+    }
+
+    private void put(long pos, byte[] src, int off, int len) {
+        while (len > 0) {
+            ByteBuffer seg = segment(pos);
+            int n = Math.min(len, seg.remaining());
+            seg.put(src, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void fill(long pos, long len, byte value) {
+        checkRange(pos, len);
+        record(pos, len, true);
+        byte[] chunk = new byte[(int) Math.min(len, 64 * 1024)];
+        if (value != 0) {
+            Arrays.fill(chunk, value);
+        }
+        while (len > 0) {
+            int n = (int) Math.min(len, chunk.length);
+            put(pos, chunk, 0, n);
+            pos += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void read(long pos, ByteBuffer dst) {
+        int len = dst.remaining();
+        checkRange(pos, len);
+        record(pos, len, false);
+        while (len > 0) {
+            ByteBuffer seg = segment(pos);
+            int n = Math.min(len, seg.remaining());
+            seg.limit(seg.position() + n);
+            dst.put(seg);
+            pos += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(long pos, ByteBuffer src) {
+        int len = src.remaining();
+        checkRange(pos, len);
+        record(pos, len, true);
+        while (len > 0) {
+            ByteBuffer seg = segment(pos);
+            int n = Math.min(len, seg.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            seg.put(part);
+            src.position(src.position() + n);
+            pos += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Views are available for ranges that lie within a single segment.
+     */
+    @Override
+    public ByteBuffer view(long pos, int len) {
+        checkRange(pos, len);
+        ByteBuffer seg = segment(pos);
+        if (len > seg.remaining()) {
+            return null;
+        }
+        seg.limit(seg.position() + len);
+        return seg.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Independent view of the segment holding pos, positioned at pos, so
+     * concurrent positional transfers never share buffer state.
+     */
+    private ByteBuffer segment(long pos) {
+        ByteBuffer seg = segments[(int) (pos >>> segmentShift)].duplicate();
+        seg.position((int) (pos & segmentMask));
+        return seg;
+    }
+}
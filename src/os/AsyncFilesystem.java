@@ -0,0 +1,419 @@
+package os;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Non-blocking front end to a Filesystem. Each call queues a request and
+ * returns a CompletableFuture at once; worker threads take the requests off
+ * the queue in batches and run them, so callers need no threads of their
+ * own.
+ *
+ * A worker combines the adjacent requests of a batch that the filesystem
+ * can serve with one call: creates become one newFiles, deletes one
+ * deleteFiles or deleteFilesByIndex, so their blocks are allocated, and the
+ * header written back, once per run rather than once per file; consecutive
+ * appends to the same file become one append, whose new bytes are written
+ * as one run of blocks. Combined appends succeed or fail together. Several
+ * workers run batches at once, and NullFS commits their transactions
+ * together.
+ *
+ * The queue holds queueDepth requests; once it is full, submitting blocks
+ * the caller until a worker has taken some (backpressure). Workers run on
+ * virtual threads when the Java runtime has them (Java 21 on), and on as
+ * many daemon platform threads otherwise.
+ *
+ * Requests in flight together may be applied in any order, apart from the
+ * appends to one file in a batch; chain on the futures where order
+ * matters. Futures are completed on the worker threads, so dependent stages
+ * that do much work should use the Async variants of CompletableFuture.
+ */
+public class AsyncFilesystem implements AutoCloseable {
+
+    /** Requests a worker takes off the queue at a time */
+    private static final int MAX_BATCH = 256;
+
+    private enum Kind {
+        CREATE, DELETE_NAME, DELETE_INDEX, APPEND, READ, STOP
+    }
+
+    private static final class Request {
+        final Kind kind;
+        final String name;
+        final int index;
+        final byte[] contents;
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+        Request(Kind kind, String name, int index, byte[] contents) {
+            this.kind = kind;
+            this.name = name;
+            this.index = index;
+            this.contents = contents;
+        }
+    }
+
+    private static final Request STOP = new Request(Kind.STOP, null, -1, null);
+
+    private final Filesystem fs;
+    private final BlockingQueue<Request> queue;
+    private final int workers;
+    private final ExecutorService executor;
+
+    // submitters hold the read lock from checking closed until their request
+    // is queued, so once close() has set it under the write lock no request
+    // can reach the queue behind the workers' STOPs
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * Front end with a queue of 1024 requests and a worker per processor.
+     * @param fs
+     */
+    public AsyncFilesystem(Filesystem fs) {
+        this(fs, 1024, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param fs the filesystem requests are run on
+     * @param queueDepth requests that may wait before submitting blocks
+     * @param workers batches run at once
+     */
+    public AsyncFilesystem(Filesystem fs, int queueDepth, int workers) {
+        if (queueDepth <= 0 || workers <= 0) {
+            throw new IllegalArgumentException("queue depth and workers must be positive");
+        }
+        this.fs = fs;
+        this.queue = new ArrayBlockingQueue<Request>(queueDepth);
+        this.workers = workers;
+        this.executor = newExecutor(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * Create a file, see Filesystem.newFile(String, byte[])
+     * @param filename
+     * @param contents
+     * @return the index of the file, or -1 if it could not be created
+     */
+    public CompletableFuture<Integer> newFileAsync(String filename, byte[] contents) {
+        return this.<Integer>submit(new Request(Kind.CREATE, filename, -1, contents));
+    }
+
+    /**
+     * Delete a file, see Filesystem.deleteFile(String)
+     * @param filename
+     * @return whether there was such a file
+     */
+    public CompletableFuture<Boolean> deleteFileAsync(String filename) {
+        return this.<Boolean>submit(new Request(Kind.DELETE_NAME, filename, -1, null));
+    }
+
+    /**
+     * Delete a file, see Filesystem.deleteFile(int)
+     * @param index
+     * @return whether there was such a file
+     */
+    public CompletableFuture<Boolean> deleteFileAsync(int index) {
+        return this.<Boolean>submit(new Request(Kind.DELETE_INDEX, null, index, null));
+    }
+
+    /**
+     * Add contents to the end of a file, see Filesystem.append(String,
+     * byte[]). The array is not copied, so it must not change until the
+     * future completes.
+     * @param filename
+     * @param contents
+     * @return false if there is no such file or not enough space
+     */
+    public CompletableFuture<Boolean> appendAsync(String filename, byte[] contents) {
+        return this.<Boolean>submit(new Request(Kind.APPEND, filename, -1, contents));
+    }
+
+    /**
+     * Read a whole file, see Filesystem.readFile(String)
+     * @param filename
+     * @return the contents, or null if there is no such file
+     */
+    public CompletableFuture<byte[]> readFileAsync(String filename) {
+        return this.<byte[]>submit(new Request(Kind.READ, filename, -1, null));
+    }
+
+    /**
+     * @return requests submitted
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return filesystem calls the requests run so far were combined into
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Stop taking requests, run those already queued and wait for the
+     * workers to finish. Requests submitted from then on fail with a
+     * RejectedExecutionException. The filesystem itself stays open.
+     */
+    @Override
+    public void close() {
+        closing.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < workers; i++) {
+            interrupted |= stop();
+        }
+        executor.shutdown();
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        // none should be left, the workers having taken all before the STOPs
+        List<Request> rest = new ArrayList<Request>();
+        queue.drainTo(rest);
+        rest.removeAll(Collections.singleton(STOP));
+        run(rest);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a request, waiting for room in the queue. The workers keep
+     * taking requests until close() has the write lock, so the wait ends.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> submit(Request r) {
+        CompletableFuture<T> result = (CompletableFuture<T>) (CompletableFuture<?>) r.result;
+        closing.readLock().lock();
+        try {
+            if (closed) {
+                result.completeExceptionally(new RejectedExecutionException("closed"));
+                return result;
+            }
+            queue.put(r);
+            requests.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+        } finally {
+            closing.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Worker loop: take a batch, run it, until a STOP is taken.
+     */
+    private void work() {
+        List<Request> batch = new ArrayList<Request>(MAX_BATCH);
+        while (true) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            int stops = 0;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                if (batch.get(i) == STOP) {
+                    batch.remove(i);
+                    stops++;
+                }
+            }
+            run(batch);
+            if (stops > 0) {
+                // one is this worker's, the others go back for the rest
+                boolean interrupted = false;
+                for (int i = 1; i < stops; i++) {
+                    interrupted |= stop();
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue a STOP, waiting for room however long it takes.
+     * @return whether the thread was interrupted meanwhile
+     */
+    private boolean stop() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(STOP);
+                return interrupted;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /**
+     * Run a batch in order, each run of adjacent requests that combine as
+     * one call.
+     */
+    private void run(List<Request> batch) {
+        for (int i = 0; i < batch.size();) {
+            int j = i + 1;
+            while (j < batch.size() && combines(batch.get(i), batch.get(j))) {
+                j++;
+            }
+            List<Request> group = batch.subList(i, j);
+            calls.incrementAndGet();
+            try {
+                call(group);
+            } catch (RuntimeException e) {
+                for (Request r : group) {
+                    r.result.completeExceptionally(e);
+                }
+            }
+            i = j;
+        }
+    }
+
+    private static boolean combines(Request first, Request next) {
+        if (first.kind != next.kind) {
+            return false;
+        }
+        switch (first.kind) {
+        case APPEND:
+            return first.name.equals(next.name);
+        case READ:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Run a group of requests that combine as one filesystem call, and
+     * complete their futures.
+     */
+    private void call(List<Request> group) {
+        Request first = group.get(0);
+        switch (first.kind) {
+        case CREATE: {
+            List<FileSpec> files = new ArrayList<FileSpec>(group.size());
+            for (Request r : group) {
+                files.add(new FileSpec(r.name, r.contents));
+            }
+            complete(group, fs.newFiles(files), false);
+            break;
+        }
+        case DELETE_NAME: {
+            List<String> names = new ArrayList<String>(group.size());
+            for (Request r : group) {
+                names.add(r.name);
+            }
+            complete(group, fs.deleteFiles(names), true);
+            break;
+        }
+        case DELETE_INDEX: {
+            Collection<Integer> indexes = new ArrayList<Integer>(group.size());
+            for (Request r : group) {
+                indexes.add(r.index);
+            }
+            complete(group, fs.deleteFilesByIndex(indexes), true);
+            break;
+        }
+        case APPEND: {
+            byte[] contents = first.contents;
+            if (group.size() > 1) {
+                int length = 0;
+                for (Request r : group) {
+                    length += r.contents.length;
+                }
+                contents = new byte[length];
+                int at = 0;
+                for (Request r : group) {
+                    System.arraycopy(r.contents, 0, contents, at, r.contents.length);
+                    at += r.contents.length;
+                }
+            }
+            Boolean appended = fs.append(first.name, contents);
+            for (Request r : group) {
+                r.result.complete(appended);
+            }
+            break;
+        }
+        case READ: {
+            first.result.complete(fs.readFile(first.name));
+            break;
+        }
+        default:
+            throw new IllegalStateException(first.kind.toString());
+        }
+    }
+
+    private static void complete(List<Request> group, List<BatchResult> results, boolean deleted) {
+        for (int i = 0; i < group.size(); i++) {
+            BatchResult result = results.get(i);
+            group.get(i).result.complete(deleted ? (Object) result.isOk() : (Object) result.getIndex());
+        }
+    }
+
+    /**
+     * An executor starting a virtual thread per task when the runtime has
+     * them, found by reflection so that this compiles for older releases,
+     * or else a pool of that many daemon platform threads.
+     */
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // before Java 21, or with virtual threads still a preview
+        }
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "NullFS async");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
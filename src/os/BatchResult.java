@@ -0,0 +1,59 @@
+package os;
+
+/**
+ * Outcome of one item of a batch operation, see Filesystem.newFiles and
+ * Filesystem.deleteFiles. Batches report failures here instead of printing
+ * them, so one item failing does not stop the others.
+ */
+public class BatchResult {
+
+    public enum Status {
+        /** the file was created or deleted */
+        OK,
+        /** the name is longer than the filesystem allows */
+        NAME_TOO_LONG,
+        /** every root directory slot is in use */
+        DIRECTORY_FULL,
+        /** the disk has too few free blocks for the contents */
+        NO_SPACE,
+        /** there is no such file to delete */
+        NOT_FOUND
+    }
+
+    private final Status status;
+    private final int index;
+
+    private BatchResult(Status status, int index) {
+        this.status = status;
+        this.index = index;
+    }
+
+    static BatchResult ok(int index) {
+        return new BatchResult(Status.OK, index);
+    }
+
+    static BatchResult failed(Status status) {
+        return new BatchResult(status, -1);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+    /**
+     * Index of the file created or deleted
+     * @return the index, or -1 if the item failed
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return isOk() ? status + " " + index : status.toString();
+    }
+}
@@ -0,0 +1,612 @@
+package os;
+
+import hardware.HDD;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Free space bitmap for the data blocks, one bit per block (1 = used).
+ * 
+ * The bitmap is kept on disk and mirrored in memory as a long[]; free bits
+ * are found a word at a time with Long.numberOfTrailingZeros. Allocation is
+ * next-fit: the search starts where the previous allocation ended, so a
+ * mostly full disk is not rescanned from block 0 for every file.
+ * 
+ * The allocator is shared by every thread using the filesystem. Its public
+ * operations are synchronized; each holds the lock only for a bounded bitmap
+ * search and the write of the words it changed, so threads contend here only
+ * while they allocate or free blocks.
+ * 
+ * Blocks of a deleted file whose data still has to be zeroed are held: the
+ * bitmap on disk already shows them free, so nothing leaks if the system
+ * stops, but in memory they stay used until release() is called once they
+ * are zeroed. Blocks queued by discard() for the background worker are
+ * taken back unzeroed when an allocation would otherwise fail, since they
+ * are about to be overwritten anyway.
+ * 
+ * Disk: |- bitmap, big-endian longs, bit (b & 63) of word (b >>> 6) for block b -|
+ */
+class BlockAllocator {
+
+    /** Free runs examined when looking for one that fits a whole request */
+    private static final int MAX_PROBES = 64;
+
+    /** Most blocks a bitmap can track, block numbers being ints */
+    static final int MAX_BLOCKS = Integer.MAX_VALUE & ~63;
+
+    /** Bitmap bytes read per transfer when loading */
+    private static final int LOAD_CHUNK = 1 << 20;
+
+    private final HDD disk;
+    private final long start;
+    private final int totalBlocks;
+    private final long[] words;
+    private final long[] held; // set in words too, but written to disk as free
+
+    private int used;
+    private int heldBlocks;
+    private int cursor; // next-fit search position
+
+    // search cost, for NullFSMetrics
+    private long allocations;
+    private long scannedWords;
+    private long probedRuns;
+
+    // held runs waiting for the discard worker, and their total length
+    private final ArrayDeque<Extent> discards = new ArrayDeque<Extent>();
+    private int queued;
+    private boolean discardStopped;
+
+    /**
+     * Load the bitmap of totalBlocks blocks stored at start on disk.
+     * @param disk
+     * @param start disk position of the bitmap
+     * @param totalBlocks
+     */
+    BlockAllocator(HDD disk, long start, int totalBlocks) {
+        this.disk = disk;
+        this.start = start;
+        this.totalBlocks = totalBlocks;
+        this.words = new long[wordsFor(totalBlocks)];
+        this.held = new long[words.length];
+
+        byte[] b = new byte[Math.min(words.length * 8, LOAD_CHUNK)];
+        for (int w = 0; w < words.length; w += b.length / 8) {
+            int n = Math.min(b.length / 8, words.length - w);
+            disk.read(start + (long) w * 8, b, 0, n * 8);
+            for (int i = 0; i < n; i++) {
+                words[w + i] = toLong(b, i * 8);
+                used += Long.bitCount(words[w + i]);
+            }
+        }
+        // the bits past the last block are set by format()
+        int tail = totalBlocks & 63;
+        if (tail != 0) {
+            used -= Long.bitCount(words[words.length - 1] & (-1L << tail));
+        }
+    }
+
+    /**
+     * Number of bytes the bitmap for totalBlocks blocks occupies on disk.
+     * @param totalBlocks
+     * @return
+     */
+    static int bytesFor(int totalBlocks) {
+        return wordsFor(totalBlocks) * 8;
+    }
+
+    private static int wordsFor(int totalBlocks) {
+        return (totalBlocks + 63) >>> 6;
+    }
+
+    /**
+     * Mark every block free and write the bitmap to disk. Bits past the last
+     * block of the final word are marked used so they are never handed out.
+     */
+    synchronized void format() {
+        for (int i = 0; i < words.length; i++) {
+            words[i] = 0L;
+        }
+        int tail = totalBlocks & 63;
+        if (tail != 0) {
+            words[words.length - 1] = -1L << tail;
+        }
+        used = 0;
+        cursor = 0;
+        store(0, words.length);
+    }
+
+    int totalBlocks() {
+        return totalBlocks;
+    }
+
+    /**
+     * Blocks in use as the bitmap on disk shows them, not counting held ones
+     */
+    synchronized int usedBlocks() {
+        return used - heldBlocks;
+    }
+
+    /**
+     * Blocks an allocation can have, counting those queued for discard
+     */
+    synchronized int freeBlocks() {
+        return totalBlocks - used + queued;
+    }
+
+    /**
+     * Copy of the bitmap as it is on disk: held blocks free, and the bits
+     * past the last block set
+     * @return the words, bit (b & 63) of word (b >>> 6) for block b
+     */
+    synchronized long[] snapshot() {
+        long[] bits = new long[words.length];
+        for (int i = 0; i < words.length; i++) {
+            bits[i] = words[i] & ~held[i];
+        }
+        return bits;
+    }
+
+    synchronized boolean isUsed(int block) {
+        return (words[block >>> 6] & (1L << block)) != 0;
+    }
+
+    /**
+     * Allocate count blocks as few extents as possible. A single free run
+     * that fits the whole request is preferred; the search probes at most
+     * MAX_PROBES free runs from the next-fit cursor before falling back to
+     * taking free runs in next-fit order.
+     * @param count
+     * @return the allocated extents in file order, or null when the disk does
+     * not have count free blocks (nothing is allocated then)
+     */
+    synchronized List<Extent> allocateExtents(int count) {
+        if (count > freeBlocks()) {
+            return null;
+        }
+        List<Extent> extents = new ArrayList<Extent>();
+        if (count == 0) {
+            return extents;
+        }
+        allocations++;
+        reclaim(count);
+        int run = findRun(count);
+        if (run >= 0) {
+            markUsed(run, count);
+            advance(run + count);
+            extents.add(new Extent(run, count));
+            return extents;
+        }
+        int n = 0;
+        while (n < count) {
+            run = nextFree(cursor);
+            int len = runLength(run, count - n);
+            markUsed(run, len);
+            advance(run + len);
+            extents.add(new Extent(run, len));
+            n += len;
+        }
+        return extents;
+    }
+
+    /**
+     * Allocate blocks for several files in one pass. The requests that fit,
+     * taken in order, are allocated together as a single allocateExtents
+     * request and its extents are split between them, so files created
+     * together are stored next to each other.
+     * @param counts blocks wanted by each file; a negative count skips it
+     * @return each file's extents in file order, null for a file that was
+     * skipped or did not fit
+     */
+    synchronized List<List<Extent>> allocateEach(int[] counts) {
+        int total = 0;
+        int free = freeBlocks();
+        boolean[] fits = new boolean[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] >= 0 && total + counts[i] <= free) {
+                fits[i] = true;
+                total += counts[i];
+            }
+        }
+        Iterator<Extent> runs = allocateExtents(total).iterator();
+        Extent run = null;
+        int taken = 0; // blocks of run already handed out
+        List<List<Extent>> result = new ArrayList<List<Extent>>(counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            if (!fits[i]) {
+                result.add(null);
+                continue;
+            }
+            List<Extent> extents = new ArrayList<Extent>();
+            for (int need = counts[i]; need > 0;) {
+                if (run == null || taken == run.getLength()) {
+                    run = runs.next();
+                    taken = 0;
+                }
+                int len = Math.min(need, run.getLength() - taken);
+                extents.add(new Extent(run.getStart() + taken, len));
+                taken += len;
+                need -= len;
+            }
+            result.add(extents);
+        }
+        return result;
+    }
+
+    /**
+     * Allocate count blocks as one run, the first that fits counting from
+     * block 0, searching the whole bitmap if need be. Used to move files
+     * together, where packing them towards the start matters more than the
+     * cost of the search.
+     * @param count
+     * @param before only runs starting before this block will do
+     * @return first block of the run, or -1 if there is no such free run
+     */
+    synchronized int allocateRun(int count, int before) {
+        if (count <= 0 || count > totalBlocks - used) {
+            return -1;
+        }
+        allocations++;
+        for (int run = firstFree(0); run >= 0 && run < before;) {
+            int len = runLength(run, count);
+            if (len == count) {
+                markUsed(run, count);
+                return run;
+            }
+            run = firstFree(run + len);
+        }
+        return -1;
+    }
+
+    /**
+     * Extend an existing run: allocate the free blocks starting exactly at
+     * block, at most max of them.
+     * @param block
+     * @param max
+     * @return number of blocks allocated, 0 if block is used or past the end
+     */
+    synchronized int allocateAt(int block, int max) {
+        if (block >= totalBlocks || max <= 0 || isUsed(block)) {
+            return 0;
+        }
+        allocations++;
+        int len = runLength(block, max);
+        markUsed(block, len);
+        advance(block + len);
+        return len;
+    }
+
+    /**
+     * Allocate a single block, used for metadata blocks.
+     * @return block number, or -1 when the disk is full
+     */
+    synchronized int allocateBlock() {
+        if (freeBlocks() == 0) {
+            return -1;
+        }
+        allocations++;
+        reclaim(1);
+        int block = nextFree(cursor);
+        markUsed(block, 1);
+        advance(block + 1);
+        return block;
+    }
+
+    /**
+     * Release every extent in the list.
+     * @param extents
+     */
+    synchronized void free(List<Extent> extents) {
+        for (Extent e : extents) {
+            free(e.getStart(), e.getLength());
+        }
+    }
+
+    /**
+     * Release the run [first, first + len).
+     * @param first
+     * @param len
+     */
+    synchronized void free(int first, int len) {
+        setRange(first, len, false);
+        used -= len;
+    }
+
+    /** Allocation calls that searched the bitmap */
+    synchronized long allocations() {
+        return allocations;
+    }
+
+    /** Bitmap words examined by all searches */
+    synchronized long scannedWords() {
+        return scannedWords;
+    }
+
+    /** Free runs examined while looking for one to fit a whole request */
+    synchronized long probedRuns() {
+        return probedRuns;
+    }
+
+    /**
+     * Free the runs on disk but keep them from being allocated until they
+     * are released, for data the caller zeroes itself.
+     * @param extents
+     */
+    synchronized void hold(List<Extent> extents) {
+        for (Extent e : extents) {
+            setBits(held, e.getStart(), e.getLength(), true);
+            heldBlocks += e.getLength();
+            store(e.getStart() >>> 6, ((e.getEnd() - 1) >>> 6) + 1);
+        }
+    }
+
+    /**
+     * Queue runs held by hold() for the discard worker. The delete that
+     * freed them must have committed, as the worker zeroes them in place.
+     * @param extents
+     */
+    synchronized void discard(List<Extent> extents) {
+        for (Extent e : extents) {
+            discards.add(e);
+            queued += e.getLength();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Take the next queued run for zeroing, waiting for one if there is
+     * none. Release it once it is zeroed.
+     * @param max longest run handed out; the rest stays queued
+     * @return the run, or null once stopDiscard() has been called and the
+     * queue is empty
+     * @throws InterruptedException
+     */
+    synchronized Extent takeDiscard(int max) throws InterruptedException {
+        while (discards.isEmpty()) {
+            if (discardStopped) {
+                return null;
+            }
+            wait();
+        }
+        Extent e = discards.poll();
+        if (e.getLength() > max) {
+            discards.addFirst(new Extent(e.getStart() + max, e.getLength() - max));
+            e = new Extent(e.getStart(), max);
+        }
+        queued -= e.getLength();
+        return e;
+    }
+
+    /**
+     * Let the discard worker stop once it has zeroed the runs queued.
+     */
+    synchronized void stopDiscard() {
+        discardStopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Make held runs available for allocation.
+     * @param extents
+     */
+    synchronized void release(List<Extent> extents) {
+        for (Extent e : extents) {
+            release(e);
+        }
+    }
+
+    synchronized void release(Extent e) {
+        // the bitmap on disk shows them free already
+        setBits(held, e.getStart(), e.getLength(), false);
+        setBits(words, e.getStart(), e.getLength(), false);
+        heldBlocks -= e.getLength();
+        used -= e.getLength();
+    }
+
+    /**
+     * Lend free blocks for the journal to spill a large commit to. They are
+     * held, so the bitmap on disk shows them free and nothing is written;
+     * give them back with release().
+     * @param count
+     * @param maxRuns most runs the caller can take
+     * @return the runs, or null when count free blocks do not come in
+     * maxRuns runs (nothing is lent then)
+     */
+    synchronized List<Extent> lend(int count, int maxRuns) {
+        reclaim(count);
+        if (count > totalBlocks - used) {
+            return null;
+        }
+        List<Extent> runs = new ArrayList<Extent>();
+        for (int n = 0, from = cursor; n < count; n += runs.get(runs.size() - 1).getLength()) {
+            if (runs.size() == maxRuns) {
+                release(runs);
+                return null;
+            }
+            int run = nextFree(from);
+            int len = runLength(run, count - n);
+            setBits(words, run, len, true);
+            setBits(held, run, len, true);
+            used += len;
+            heldBlocks += len;
+            runs.add(new Extent(run, len));
+            from = run + len >= totalBlocks ? 0 : run + len;
+        }
+        return runs;
+    }
+
+    /**
+     * Take back queued runs, unzeroed, until count blocks are free.
+     */
+    private void reclaim(int count) {
+        while (totalBlocks - used < count && !discards.isEmpty()) {
+            Extent e = discards.pollLast();
+            queued -= e.getLength();
+            release(e);
+        }
+    }
+
+    /**
+     * Add every free run, from block 0 on, to a fragmentation report. Held
+     * blocks count as used.
+     * @param report
+     */
+    synchronized void countFreeRuns(FragmentationReport report) {
+        for (int run = firstFree(0); run >= 0;) {
+            int len = runLength(run, totalBlocks);
+            report.addFreeRun(len);
+            run = firstFree(run + len);
+        }
+    }
+
+    private void advance(int next) {
+        cursor = next >= totalBlocks ? 0 : next;
+    }
+
+    /**
+     * Start of a free run of at least count blocks, or -1 if none was found
+     * within MAX_PROBES runs of the cursor.
+     */
+    private int findRun(int count) {
+        int from = cursor;
+        int scanned = 0;
+        for (int probe = 0; probe < MAX_PROBES && scanned < totalBlocks; probe++) {
+            probedRuns++;
+            int run = nextFree(from);
+            int len = runLength(run, count);
+            if (len == count) {
+                return run;
+            }
+            scanned += (run >= from ? run - from : totalBlocks - from + run) + len;
+            from = run + len >= totalBlocks ? 0 : run + len;
+        }
+        return -1;
+    }
+
+    private void markUsed(int first, int len) {
+        setRange(first, len, true);
+        used += len;
+    }
+
+    /**
+     * First free block at or after from, wrapping around to block 0. Callers
+     * guarantee at least one block is free.
+     */
+    private int nextFree(int from) {
+        int w = from >>> 6;
+        long free = ~words[w] & (-1L << from);
+        scannedWords++;
+        for (int scanned = 0; free == 0; scanned++) {
+            w = w + 1 == words.length ? 0 : w + 1;
+            free = ~words[w];
+            scannedWords++;
+            if (scanned > words.length) {
+                throw new IllegalStateException("block bitmap is full");
+            }
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(free);
+    }
+
+    /**
+     * First free block at or after from, without wrapping around.
+     * @return the block, or -1 if every block from there on is used
+     */
+    private int firstFree(int from) {
+        if (from >= totalBlocks) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long free = ~words[w] & (-1L << from);
+        scannedWords++;
+        while (free == 0) {
+            if (++w == words.length) {
+                return -1;
+            }
+            free = ~words[w];
+            scannedWords++;
+        }
+        int block = (w << 6) + Long.numberOfTrailingZeros(free);
+        return block < totalBlocks ? block : -1;
+    }
+
+    /**
+     * Length of the free run starting at first, capped at max.
+     */
+    private int runLength(int first, int max) {
+        int len = 0;
+        int b = first;
+        while (len < max && b < totalBlocks) {
+            scannedWords++;
+            long usedBits = words[b >>> 6] >>> (b & 63);
+            int span = 64 - (b & 63);
+            int free = usedBits == 0 ? span : Math.min(span, Long.numberOfTrailingZeros(usedBits));
+            len += free;
+            b += free;
+            if (free < span) {
+                break;
+            }
+        }
+        return Math.min(len, max);
+    }
+
+    private void setRange(int first, int len, boolean value) {
+        if (len <= 0) {
+            return;
+        }
+        setBits(words, first, len, value);
+        store(first >>> 6, ((first + len - 1) >>> 6) + 1);
+    }
+
+    private static void setBits(long[] bits, int first, int len, boolean value) {
+        if (len <= 0) {
+            return;
+        }
+        int last = first + len - 1;
+        int w0 = first >>> 6;
+        int w1 = last >>> 6;
+        for (int w = w0; w <= w1; w++) {
+            long mask = -1L;
+            if (w == w0) {
+                mask &= -1L << first;
+            }
+            if (w == w1) {
+                mask &= -1L >>> (63 - (last & 63));
+            }
+            if (value) {
+                bits[w] |= mask;
+            } else {
+                bits[w] &= ~mask;
+            }
+        }
+    }
+
+    /**
+     * Write words [from, to) back to disk in one transfer, held blocks as
+     * free.
+     */
+    private void store(int from, int to) {
+        byte[] b = new byte[(to - from) * 8];
+        for (int i = from; i < to; i++) {
+            putLong(b, (i - from) * 8, words[i] & ~held[i]);
+        }
+        disk.write(start + (long) from * 8, b, 0, b.length);
+    }
+
+    private static long toLong(byte[] b, int off) {
+        long l = 0;
+        for (int i = 0; i < 8; i++) {
+            l = (l << 8) | (b[off + i] & 0xFF);
+        }
+        return l;
+    }
+
+    private static void putLong(byte[] b, int off, long l) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) l;
+            l >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package os;
+
+import hardware.HDD;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of the data blocks and inodes of a filesystem formatted
+ * with checksums, checked whenever they are read back.
+ *
+ * A block's checksum covers the bytes a file keeps in it: the whole block,
+ * except for the last block of a file, which is covered as far as the file
+ * reaches into it. Appending to a partly filled block then writes only the
+ * new bytes, as without checksums, and a crash before the append commits
+ * leaves the old checksum matching the old bytes. Pointer blocks are always
+ * covered whole. An inode's checksum covers the bytes of the inode; free
+ * inode slots are not checked.
+ *
+ * The table is kept on disk and mirrored in memory, as the block bitmap is
+ * (see BlockAllocator). Changed entries are written through the journal,
+ * so a checksum changes in the same transaction as the inode that makes
+ * the block part of a file. CRC32C is computed outside the lock; reading
+ * and storing entries is synchronized.
+ *
+ * Disk: |- per data block: CRC32C 4 bytes -|- per inode slot: CRC32C 4 bytes -|
+ */
+class BlockChecksums {
+
+    /** Bytes of the table per data block or inode */
+    static final int ENTRY = 4;
+
+    /** Table bytes read per transfer when loading */
+    private static final int LOAD_CHUNK = 1 << 20;
+
+    private final HDD disk;
+    private final long start;
+    private final int blockSize;
+    private final int[] blocks;
+    private final int[] inodes;
+
+    /**
+     * Load the table stored at start on disk.
+     * @param disk
+     * @param start disk position of the table
+     * @param blockSize
+     * @param totalBlocks
+     * @param inodeCount root directory slots
+     */
+    BlockChecksums(HDD disk, long start, int blockSize, int totalBlocks, int inodeCount) {
+        this.disk = disk;
+        this.start = start;
+        this.blockSize = blockSize;
+        this.blocks = new int[totalBlocks];
+        this.inodes = new int[inodeCount];
+
+        int entries = totalBlocks + inodeCount;
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(entries, LOAD_CHUNK / ENTRY) * ENTRY);
+        for (int e = 0; e < entries; e += buf.capacity() / ENTRY) {
+            int n = Math.min(buf.capacity() / ENTRY, entries - e);
+            disk.read(start + (long) e * ENTRY, buf.array(), 0, n * ENTRY);
+            for (int i = 0; i < n; i++) {
+                if (e + i < totalBlocks) {
+                    blocks[e + i] = buf.getInt(i * ENTRY);
+                } else {
+                    inodes[e + i - totalBlocks] = buf.getInt(i * ENTRY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of bytes the table occupies on disk.
+     * @param totalBlocks
+     * @param inodeCount
+     * @return
+     */
+    static long bytesFor(int totalBlocks, int inodeCount) {
+        return ((long) totalBlocks + inodeCount) * ENTRY;
+    }
+
+    /**
+     * CRC32C of len bytes of b from off.
+     * @param b
+     * @param off
+     * @param len
+     * @return
+     */
+    static int of(byte[] b, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Record the checksums of blocks written from first on, with one write
+     * of their entries.
+     * @param first
+     * @param b the bytes written, the last block possibly partly filled
+     * @param off
+     * @param len
+     */
+    void store(int first, byte[] b, int off, int len) {
+        int[] sums = sums(b, off, len);
+        ByteBuffer entries = ByteBuffer.allocate(sums.length * ENTRY);
+        for (int sum : sums) {
+            entries.putInt(sum);
+        }
+        synchronized (this) {
+            System.arraycopy(sums, 0, blocks, first, sums.length);
+            disk.write(start + (long) first * ENTRY, entries.array(), 0, entries.capacity());
+        }
+    }
+
+    /**
+     * Give the blocks of a run the checksums of the blocks of extents whose
+     * contents were copied to it, in order.
+     * @param extents
+     * @param run first block of the copy
+     */
+    synchronized void copy(List<Extent> extents, int run) {
+        int count = 0;
+        for (Extent e : extents) {
+            count += e.getLength();
+        }
+        ByteBuffer entries = ByteBuffer.allocate(count * ENTRY);
+        int to = run;
+        for (Extent e : extents) {
+            for (int b = e.getStart(); b < e.getEnd(); b++, to++) {
+                blocks[to] = blocks[b];
+                entries.putInt(blocks[b]);
+            }
+        }
+        disk.write(start + (long) run * ENTRY, entries.array(), 0, entries.capacity());
+    }
+
+    /**
+     * Check blocks read from first on against their checksums.
+     * @param first
+     * @param b the bytes read, the last block possibly as far as the file
+     * reaches into it
+     * @param off
+     * @param len
+     * @throws ChecksumException naming the first block that does not match
+     */
+    void verify(int first, byte[] b, int off, int len) {
+        int bad = mismatch(first, sums(b, off, len));
+        if (bad >= 0) {
+            throw new ChecksumException("data block " + bad + " does not match its checksum");
+        }
+    }
+
+    /**
+     * Check blocks from first on against their checksums, see
+     * verify(int, byte[], int, int); the position of data is left as it was.
+     * @param first
+     * @param data
+     */
+    void verify(int first, ByteBuffer data) {
+        ByteBuffer b = data.duplicate();
+        int[] sums = new int[(b.remaining() + blockSize - 1) / blockSize];
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < sums.length; i++) {
+            b.limit(Math.min(data.limit(), b.position() + blockSize));
+            crc.reset();
+            crc.update(b);
+            sums[i] = (int) crc.getValue();
+        }
+        int bad = mismatch(first, sums);
+        if (bad >= 0) {
+            throw new ChecksumException("data block " + bad + " does not match its checksum");
+        }
+    }
+
+    /**
+     * Whether a block matches its checksum.
+     * @param block
+     * @param b the bytes read, as far as the file reaches into the block
+     * @param off
+     * @param len
+     * @return
+     */
+    boolean matches(int block, byte[] b, int off, int len) {
+        int sum = of(b, off, len);
+        synchronized (this) {
+            return blocks[block] == sum;
+        }
+    }
+
+    /**
+     * Record the checksum of an inode written to a slot.
+     * @param slot
+     * @param inode
+     */
+    void storeInode(int slot, byte[] inode) {
+        int sum = of(inode, 0, inode.length);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY).putInt(sum);
+        synchronized (this) {
+            inodes[slot] = sum;
+            disk.write(start + ((long) blocks.length + slot) * ENTRY, entry.array(), 0, ENTRY);
+        }
+    }
+
+    /**
+     * Check an inode read from a slot against its checksum.
+     * @param slot
+     * @param inode
+     * @throws ChecksumException if it does not match
+     */
+    void verifyInode(int slot, byte[] inode) {
+        int sum = of(inode, 0, inode.length);
+        synchronized (this) {
+            if (inodes[slot] == sum) {
+                return;
+            }
+        }
+        throw new ChecksumException("inode in slot " + slot + " does not match its checksum");
+    }
+
+    private int[] sums(byte[] b, int off, int len) {
+        int[] sums = new int[(len + blockSize - 1) / blockSize];
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < sums.length; i++) {
+            crc.reset();
+            crc.update(b, off + i * blockSize, Math.min(blockSize, len - i * blockSize));
+            sums[i] = (int) crc.getValue();
+        }
+        return sums;
+    }
+
+    /**
+     * @return the first block from first on whose checksum differs from
+     * sums, or -1
+     */
+    private synchronized int mismatch(int first, int[] sums) {
+        for (int i = 0; i < sums.length; i++) {
+            if (blocks[first + i] != sums[i]) {
+                return first + i;
+            }
+        }
+        return -1;
+    }
+}
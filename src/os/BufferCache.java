@@ -0,0 +1,461 @@
+package os;
+
+import hardware.HDD;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-back block cache in front of a disk. The disk is divided into cache
+ * blocks of blockSize bytes, addressed by block number (position / blockSize),
+ * which NullFS aligns its data blocks with (see Superblock.dataStart);
+ * at most capacity of them are held in memory and the least recently used
+ * unpinned block is evicted when a new one is needed. Writes only touch the
+ * cached copy; dirty blocks reach the disk when they are evicted or on
+ * flush()/force(), adjacent dirty blocks being written in one transfer.
+ * 
+ * Pinned blocks (filesystem meta-data) are never evicted, and may take at
+ * most half of the cache. Should every cached block still be pinned, blocks
+ * that are not cached are read and written straight through to the disk.
+ * 
+ * The cache is safe for concurrent use. Blocks are spread over independently
+ * locked segments, each with its own share of the capacity and its own LRU
+ * order, so threads working on different blocks rarely wait for each other.
+ * A transfer holds one segment lock at a time; flush() takes them all.
+ */
+public class BufferCache extends HDD {
+
+    private static class Buffer {
+        final long block;
+        final byte[] data;
+        boolean dirty;
+        boolean pinned;
+
+        Buffer(long block, int length) {
+            this.block = block;
+            this.data = new byte[length];
+        }
+    }
+
+    /** A share of the cache, guarded by its own lock */
+    private static class Segment extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        final int capacity;
+        final LinkedHashMap<Long, Buffer> buffers;
+        int pinnedCount;
+
+        long hits;
+        long misses;
+        long evictions;
+        long flushes;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.buffers = new LinkedHashMap<Long, Buffer>(capacity * 4 / 3 + 1, 0.75f, true);
+        }
+    }
+
+    /** Upper bound on segments; each one holds at least MIN_SEGMENT_BLOCKS */
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_BLOCKS = 8;
+
+    private final HDD device;
+    private final int blockSize;
+    private final int capacity;
+    private final Segment[] segments;
+
+    /**
+     * @param device the disk being cached
+     * @param blockSize bytes per cache block
+     * @param capacity maximum number of cached blocks
+     */
+    public BufferCache(HDD device, int blockSize, int capacity) {
+        if (blockSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("block size and capacity must be positive");
+        }
+        this.device = device;
+        this.blockSize = blockSize;
+        this.capacity = capacity;
+        this.size = device.capacity();
+        int count = Math.max(1, Math.min(MAX_SEGMENTS, capacity / MIN_SEGMENT_BLOCKS));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+    }
+
+    @Override
+    public void write(byte b) {
+        write(index, new byte[] { b }, 0, 1);
+        index++;
+    }
+
+    @Override
+    public byte read() {
+        byte[] b = new byte[1];
+        read(index, b, 0, 1);
+        index++;
+        return b[0];
+    }
+
+    @Override
+    public void read(long pos, byte[] dst, int off, int len) {
+        checkRange(pos, len);
+        while (len > 0) {
+            long block = pos / blockSize;
+            int inBlock = (int) (pos - block * blockSize);
+            int n = Math.min(len, blockLength(block) - inBlock);
+            Segment seg = segmentOf(block);
+            seg.lock();
+            try {
+                Buffer buf = lookup(seg, block, false);
+                if (buf == null) {
+                    device.read(pos, dst, off, n);
+                } else {
+                    System.arraycopy(buf.data, inBlock, dst, off, n);
+                }
+            } finally {
+                seg.unlock();
+            }
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(long pos, byte[] src, int off, int len) {
+        checkRange(pos, len);
+        while (len > 0) {
+            long block = pos / blockSize;
+            int inBlock = (int) (pos - block * blockSize);
+            int n = Math.min(len, blockLength(block) - inBlock);
+            Segment seg = segmentOf(block);
+            seg.lock();
+            try {
+                Buffer buf = lookup(seg, block, n == blockLength(block));
+                if (buf == null) {
+                    device.write(pos, src, off, n);
+                } else {
+                    System.arraycopy(src, off, buf.data, inBlock, n);
+                    buf.dirty = true;
+                }
+            } finally {
+                seg.unlock();
+            }
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void fill(long pos, long len, byte value) {
+        checkRange(pos, len);
+        while (len > 0) {
+            long block = pos / blockSize;
+            int inBlock = (int) (pos - block * blockSize);
+            int n = (int) Math.min(len, blockLength(block) - inBlock);
+            Segment seg = segmentOf(block);
+            seg.lock();
+            try {
+                Buffer buf = lookup(seg, block, n == blockLength(block));
+                if (buf == null) {
+                    device.fill(pos, n, value);
+                } else {
+                    Arrays.fill(buf.data, inBlock, inBlock + n, value);
+                    buf.dirty = true;
+                }
+            } finally {
+                seg.unlock();
+            }
+            pos += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void read(long pos, ByteBuffer dst) {
+        byte[] b = new byte[dst.remaining()];
+        read(pos, b, 0, b.length);
+        dst.put(b);
+    }
+
+    @Override
+    public void write(long pos, ByteBuffer src) {
+        byte[] b = new byte[src.remaining()];
+        src.get(b);
+        write(pos, b, 0, b.length);
+    }
+
+    /**
+     * Cached blocks may be newer than the disk, so no view is offered.
+     */
+    @Override
+    public ByteBuffer view(long pos, int len) {
+        return null;
+    }
+
+    /**
+     * Write back dirty blocks and flush the underlying disk.
+     */
+    @Override
+    public void force() {
+        flush();
+        device.force();
+    }
+
+    /**
+     * Write every dirty block back to the disk in block order; runs of
+     * adjacent dirty blocks are written as one transfer. Every segment is
+     * locked meanwhile, always in the same order.
+     */
+    public void flush() {
+        for (Segment seg : segments) {
+            seg.lock();
+        }
+        try {
+            flushLocked();
+        } finally {
+            for (Segment seg : segments) {
+                seg.unlock();
+            }
+        }
+    }
+
+    private void flushLocked() {
+        List<Buffer> dirty = new ArrayList<Buffer>();
+        for (Segment seg : segments) {
+            for (Buffer buf : seg.buffers.values()) {
+                if (buf.dirty) {
+                    dirty.add(buf);
+                }
+            }
+        }
+        Collections.sort(dirty, new Comparator<Buffer>() {
+            @Override
+            public int compare(Buffer a, Buffer b) {
+                return a.block < b.block ? -1 : (a.block == b.block ? 0 : 1);
+            }
+        });
+        int i = 0;
+        while (i < dirty.size()) {
+            int j = i + 1;
+            while (j < dirty.size() && dirty.get(j).block == dirty.get(j - 1).block + 1) {
+                j++;
+            }
+            writeBack(dirty.subList(i, j));
+            segments[0].flushes++;
+            i = j;
+        }
+    }
+
+    /**
+     * Keep the blocks covering [pos, pos + len) in the cache permanently,
+     * loading them now. At most half of each segment can be pinned, so blocks
+     * past that limit are left unpinned.
+     * @param pos
+     * @param len
+     * @return number of blocks newly pinned
+     */
+    public int pin(long pos, long len) {
+        int pinned = 0;
+        for (long block = pos / blockSize; block * blockSize < pos + len; block++) {
+            Segment seg = segmentOf(block);
+            seg.lock();
+            try {
+                if (seg.pinnedCount >= seg.capacity / 2) {
+                    continue;
+                }
+                Buffer buf = lookup(seg, block, false);
+                if (buf != null && !buf.pinned) {
+                    buf.pinned = true;
+                    seg.pinnedCount++;
+                    pinned++;
+                }
+            } finally {
+                seg.unlock();
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * Allow the blocks covering [pos, pos + len) to be evicted again.
+     * @param pos
+     * @param len
+     */
+    public void unpin(long pos, long len) {
+        for (long block = pos / blockSize; block * blockSize < pos + len; block++) {
+            Segment seg = segmentOf(block);
+            seg.lock();
+            try {
+                Buffer buf = seg.buffers.get(block);
+                if (buf != null && buf.pinned) {
+                    buf.pinned = false;
+                    seg.pinnedCount--;
+                }
+            } finally {
+                seg.unlock();
+            }
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getCachedBlocks() {
+        return (int) sum(CACHED);
+    }
+
+    public int getPinnedBlocks() {
+        return (int) sum(PINNED);
+    }
+
+    /** Lookups satisfied from the cache */
+    public long getHits() {
+        return sum(HITS);
+    }
+
+    /** Lookups that had to load the block or bypass the cache */
+    public long getMisses() {
+        return sum(MISSES);
+    }
+
+    /** Blocks dropped to make room for others */
+    public long getEvictions() {
+        return sum(EVICTIONS);
+    }
+
+    /** Transfers made to write dirty blocks back to the disk */
+    public long getFlushes() {
+        return sum(FLUSHES);
+    }
+
+    @Override
+    public String toString() {
+        return "hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions() + ", flushes " + getFlushes()
+                + ", cached " + getCachedBlocks() + " / " + capacity + " (" + getPinnedBlocks() + " pinned)";
+    }
+
+    private static final int CACHED = 0, PINNED = 1, HITS = 2, MISSES = 3, EVICTIONS = 4, FLUSHES = 5;
+
+    /**
+     * Total of one statistic over the segments, each read under its lock.
+     */
+    private long sum(int stat) {
+        long total = 0;
+        for (Segment seg : segments) {
+            seg.lock();
+            try {
+                switch (stat) {
+                case CACHED: total += seg.buffers.size(); break;
+                case PINNED: total += seg.pinnedCount; break;
+                case HITS: total += seg.hits; break;
+                case MISSES: total += seg.misses; break;
+                case EVICTIONS: total += seg.evictions; break;
+                default: total += seg.flushes; break;
+                }
+            } finally {
+                seg.unlock();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Segment caching block. Consecutive blocks land in different segments,
+     * so a sequential transfer spreads over all of them.
+     */
+    private Segment segmentOf(long block) {
+        return segments[(int) (block % segments.length)];
+    }
+
+    /**
+     * Cached buffer for block, loading it on a miss. When overwrite is set the
+     * caller replaces the whole block, so it is not read from the disk.
+     * Called with seg locked.
+     * @return the buffer, or null when every cached block is pinned
+     */
+    private Buffer lookup(Segment seg, long block, boolean overwrite) {
+        Buffer buf = seg.buffers.get(block);
+        if (buf != null) {
+            seg.hits++;
+            return buf;
+        }
+        seg.misses++;
+        if (seg.buffers.size() >= seg.capacity && !evictOne(seg)) {
+            return null;
+        }
+        buf = new Buffer(block, blockLength(block));
+        if (!overwrite) {
+            device.read(block * blockSize, buf.data, 0, buf.data.length);
+        }
+        seg.buffers.put(block, buf);
+        return buf;
+    }
+
+    /**
+     * Drop the segment's least recently used unpinned block, writing it back
+     * if dirty.
+     * @return false if every block in the segment is pinned
+     */
+    private boolean evictOne(Segment seg) {
+        Iterator<Buffer> it = seg.buffers.values().iterator();
+        while (it.hasNext()) {
+            Buffer buf = it.next();
+            if (!buf.pinned) {
+                if (buf.dirty) {
+                    writeBack(Collections.singletonList(buf));
+                    seg.flushes++;
+                }
+                it.remove();
+                seg.evictions++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write a run of consecutive dirty blocks in one transfer.
+     */
+    private void writeBack(List<Buffer> run) {
+        if (run.size() == 1) {
+            Buffer buf = run.get(0);
+            device.write(buf.block * blockSize, buf.data, 0, buf.data.length);
+        } else {
+            int length = 0;
+            for (Buffer buf : run) {
+                length += buf.data.length;
+            }
+            byte[] b = new byte[length];
+            int off = 0;
+            for (Buffer buf : run) {
+                System.arraycopy(buf.data, 0, b, off, buf.data.length);
+                off += buf.data.length;
+            }
+            device.write(run.get(0).block * blockSize, b, 0, length);
+        }
+        for (Buffer buf : run) {
+            buf.dirty = false;
+        }
+    }
+
+    private int blockLength(long block) {
+        return (int) Math.min(blockSize, size - block * blockSize);
+    }
+}
@@ -0,0 +1,15 @@
+package os;
+
+/**
+ * Thrown when data read from a disk formatted with checksums does not match
+ * the checksum recorded when it was written: the disk returned something
+ * other than what the filesystem stored there. See BlockChecksums.
+ */
+public class ChecksumException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ChecksumException(String message) {
+        super(message);
+    }
+}
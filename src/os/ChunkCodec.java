@@ -0,0 +1,146 @@
+package os;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stored form of a compressed file: its bytes in chunks of CHUNK bytes, the
+ * last one shorter, each deflated on its own so that a read only inflates
+ * the chunks it touches, followed by a table of where each chunk ends.
+ *
+ * A chunk that deflating would not shrink is stored as it is; a chunk is
+ * inflated only when it is stored shorter than its file bytes. The number
+ * of chunks follows from the file size, which the inode holds, so the table
+ * is found from the end of the stored form. Appending only re-encodes the
+ * last chunk, if it is partly filled, and rewrites the table.
+ *
+ * Stored form: |- chunk 0 -|- chunk 1 -| ... |- end of each chunk in the stored form 4 bytes ... -|
+ */
+final class ChunkCodec {
+
+    /** File bytes per chunk */
+    static final int CHUNK = 32 * 1024;
+
+    private ChunkCodec() {
+    }
+
+    /**
+     * Number of chunks a file of size bytes is stored in.
+     * @param size
+     * @return
+     */
+    static int chunks(int size) {
+        return (size + CHUNK - 1) / CHUNK;
+    }
+
+    /**
+     * Stored form of file bytes that follow the first keep chunks of a file:
+     * the chunks of the bytes, then the table for the whole file.
+     * @param ends where each of the kept chunks ends, at least keep entries
+     * @param keep
+     * @param src bytes starting at a chunk boundary
+     * @param off
+     * @param len
+     * @return bytes to store after the kept chunks
+     */
+    static byte[] encode(int[] ends, int keep, byte[] src, int off, int len) {
+        int count = keep + chunks(len);
+        int base = keep == 0 ? 0 : ends[keep - 1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + count * 4);
+        byte[] table = new byte[count * 4];
+        for (int c = 0; c < keep; c++) {
+            putInt(table, c * 4, ends[c]);
+        }
+
+        // fastest level: the point is fewer bytes moved, not the smallest form
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] buffer = new byte[CHUNK];
+        try {
+            for (int c = keep, at = off; c < count; c++) {
+                int n = Math.min(CHUNK, off + len - at);
+                deflater.reset();
+                deflater.setInput(src, at, n);
+                deflater.finish();
+                int packed = 0;
+                while (!deflater.finished() && packed < n) {
+                    packed += deflater.deflate(buffer, packed, buffer.length - packed);
+                }
+                if (deflater.finished() && packed < n) {
+                    out.write(buffer, 0, packed);
+                } else {
+                    out.write(src, at, n);
+                }
+                putInt(table, c * 4, base + out.size());
+                at += n;
+            }
+        } finally {
+            deflater.end();
+        }
+        out.write(table, 0, table.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Chunk ends from a table read from the stored form.
+     * @param table
+     * @param count
+     * @return
+     */
+    static int[] ends(byte[] table, int count) {
+        int[] ends = new int[count];
+        for (int c = 0; c < count; c++) {
+            ends[c] = toInt(table, c * 4);
+        }
+        return ends;
+    }
+
+    /**
+     * Restore the file bytes of one chunk.
+     * @param src the stored chunk
+     * @param off
+     * @param len its stored length
+     * @param dst
+     * @param dstOff
+     * @param size its file bytes
+     * @throws IllegalStateException if the stored chunk does not inflate to
+     * size bytes
+     */
+    static void decode(byte[] src, int off, int len, byte[] dst, int dstOff, int size) {
+        if (len == size) {
+            System.arraycopy(src, off, dst, dstOff, size);
+            return;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src, off, len);
+            int n = 0;
+            while (n < size && !inflater.finished()) {
+                int m = inflater.inflate(dst, dstOff + n, size - n);
+                if (m == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += m;
+            }
+            if (n != size) {
+                throw new IllegalStateException("compressed chunk holds " + n + " of " + size + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("compressed chunk is damaged", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int toInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] b, int off, int i) {
+        b[off] = (byte) (i >>> 24);
+        b[off + 1] = (byte) (i >>> 16);
+        b[off + 2] = (byte) (i >>> 8);
+        b[off + 3] = (byte) i;
+    }
+}
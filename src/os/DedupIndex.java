@@ -0,0 +1,260 @@
+package os;
+
+import hardware.HDD;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Content index and reference counts for the data blocks of a filesystem
+ * formatted with deduplication.
+ *
+ * Every whole block of file data is hashed when it is written, and a block
+ * whose hash is already indexed is shared instead of written again; the
+ * caller compares the two blocks before relying on a hit, so a hash
+ * collision costs a read rather than a wrong file. A block's reference
+ * count is the number of places in files that point to it, and deleting a
+ * file only frees the blocks whose count drops to zero.
+ *
+ * A count of 0 marks a block the index does not track: a partly filled last
+ * block, a pointer block, or a block whose hash was taken by another one.
+ * Such a block has a single owner and is freed as usual.
+ *
+ * The table is kept on disk and mirrored in memory, as the block bitmap is
+ * (see BlockAllocator), with a map from hash to block rebuilt from it when
+ * the filesystem is opened. Changed entries are written through the
+ * journal, so counts change in the same transaction as the inodes that
+ * hold the references. All operations are synchronized.
+ *
+ * Disk: |- per block: hash of the contents 8 bytes (0 = none) -|- reference count 4 bytes -|
+ */
+class DedupIndex {
+
+    /** Bytes of the table per data block */
+    static final int ENTRY = 12;
+
+    /** Table bytes read per transfer when loading */
+    private static final int LOAD_CHUNK = 1 << 20;
+
+    private final HDD disk;
+    private final long start;
+    private final long[] hashes;
+    private final int[] refs;
+    private final HashMap<Long, Integer> byHash = new HashMap<Long, Integer>();
+
+    // whole blocks found already stored, and so not written
+    private long hits;
+
+    /**
+     * Load the table of totalBlocks entries stored at start on disk.
+     * @param disk
+     * @param start disk position of the table
+     * @param totalBlocks
+     */
+    DedupIndex(HDD disk, long start, int totalBlocks) {
+        this.disk = disk;
+        this.start = start;
+        this.hashes = new long[totalBlocks];
+        this.refs = new int[totalBlocks];
+
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(totalBlocks, LOAD_CHUNK / ENTRY) * ENTRY);
+        for (int b = 0; b < totalBlocks; b += buf.capacity() / ENTRY) {
+            int n = Math.min(buf.capacity() / ENTRY, totalBlocks - b);
+            disk.read(start + (long) b * ENTRY, buf.array(), 0, n * ENTRY);
+            for (int i = 0; i < n; i++) {
+                hashes[b + i] = buf.getLong(i * ENTRY);
+                refs[b + i] = buf.getInt(i * ENTRY + 8);
+                if (hashes[b + i] != 0 && refs[b + i] > 0) {
+                    byHash.put(hashes[b + i], b + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of bytes the table for totalBlocks blocks occupies on disk.
+     * @param totalBlocks
+     * @return
+     */
+    static long bytesFor(int totalBlocks) {
+        return (long) totalBlocks * ENTRY;
+    }
+
+    /**
+     * 64-bit hash of len bytes of b from off, never 0.
+     * @param b
+     * @param off
+     * @param len
+     * @return
+     */
+    static long hash(byte[] b, int off, int len) {
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        long h = 0x9E3779B97F4A7C15L ^ len;
+        while (buf.remaining() >= 8) {
+            h = Long.rotateLeft(h ^ buf.getLong() * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        }
+        while (buf.hasRemaining()) {
+            h = Long.rotateLeft(h ^ (buf.get() & 0xFF) * 0x165667B19E3779F9L, 23) * 0x9E3779B97F4A7C15L;
+        }
+        // final mix, as in SplitMix64
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Take a reference to the block indexed under hash.
+     * @param hash
+     * @return the block, or -1 if no block has that hash; release() it if
+     * its contents turn out to differ
+     */
+    synchronized int share(long hash) {
+        Integer block = byHash.get(hash);
+        if (block == null) {
+            return -1;
+        }
+        refs[block]++;
+        store(block);
+        hits++;
+        return block;
+    }
+
+    /**
+     * Index a newly written block under the hash of its contents, with one
+     * reference. The block stays untracked if another one holds the hash.
+     * @param block
+     * @param hash
+     */
+    synchronized void add(int block, long hash) {
+        if (byHash.containsKey(hash)) {
+            return;
+        }
+        byHash.put(hash, block);
+        hashes[block] = hash;
+        refs[block] = 1;
+        store(block);
+    }
+
+    /**
+     * Take one more reference to a block the caller holds one to already.
+     * @param block
+     */
+    synchronized void addReference(int block) {
+        refs[block] = Math.max(refs[block], 1) + 1;
+        store(block);
+        hits++;
+    }
+
+    /**
+     * Drop one reference to every block of the extents.
+     * @param extents
+     * @return the runs of blocks left with no reference, to be freed by
+     * the caller
+     */
+    synchronized List<Extent> release(List<Extent> extents) {
+        List<Extent> unused = new ArrayList<Extent>();
+        int first = -1;
+        int len = 0;
+        for (Extent e : extents) {
+            for (int b = e.getStart(); b < e.getEnd(); b++) {
+                if (!release(b)) {
+                    continue;
+                }
+                if (len > 0 && first + len == b) {
+                    len++;
+                    continue;
+                }
+                if (len > 0) {
+                    unused.add(new Extent(first, len));
+                }
+                first = b;
+                len = 1;
+            }
+        }
+        if (len > 0) {
+            unused.add(new Extent(first, len));
+        }
+        return unused;
+    }
+
+    /**
+     * Whether any block of the extents has more than one reference.
+     * @param extents
+     * @return
+     */
+    synchronized boolean isShared(List<Extent> extents) {
+        for (Extent e : extents) {
+            for (int b = e.getStart(); b < e.getEnd(); b++) {
+                if (refs[b] > 1) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move the entries of unshared blocks to the run their contents were
+     * copied to, in order, leaving the old blocks untracked.
+     * @param extents
+     * @param run first block of the copy
+     */
+    synchronized void move(List<Extent> extents, int run) {
+        int to = run;
+        for (Extent e : extents) {
+            for (int b = e.getStart(); b < e.getEnd(); b++, to++) {
+                if (refs[b] == 0) {
+                    continue;
+                }
+                if (hashes[b] != 0) {
+                    byHash.put(hashes[b], to);
+                }
+                hashes[to] = hashes[b];
+                refs[to] = refs[b];
+                hashes[b] = 0;
+                refs[b] = 0;
+                store(b);
+                store(to);
+            }
+        }
+    }
+
+    /** Whole blocks found already stored, and so not written */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /** Blocks indexed by their contents */
+    synchronized int indexed() {
+        return byHash.size();
+    }
+
+    /**
+     * Drop one reference to a block.
+     * @return whether the block is now unused
+     */
+    private boolean release(int block) {
+        if (refs[block] == 0) {
+            return true;
+        }
+        if (--refs[block] > 0) {
+            store(block);
+            return false;
+        }
+        if (hashes[block] != 0) {
+            byHash.remove(hashes[block]);
+        }
+        hashes[block] = 0;
+        store(block);
+        return true;
+    }
+
+    private void store(int block) {
+        ByteBuffer b = ByteBuffer.allocate(ENTRY);
+        b.putLong(hashes[block]).putInt(refs[block]);
+        disk.write(start + (long) block * ENTRY, b.array(), 0, ENTRY);
+    }
+}
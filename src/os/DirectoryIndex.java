@@ -0,0 +1,194 @@
+package os;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the root directory: file name and file index to inode
+ * slot, plus the set of free slots. Names compare case-insensitively, the
+ * same way String.equalsIgnoreCase does. Several files may share a name; a
+ * lookup by name returns the lowest slot, which is the one a scan of the
+ * inode list would find first.
+ * 
+ * The index is safe for concurrent use: lookups share a read lock and only
+ * changes to the directory take the write lock. A new file first claims its
+ * slot, which hides the slot from other creators but not yet from lookups,
+ * and becomes visible once add() is called with its inode written.
+ */
+class DirectoryIndex {
+
+    private final int slots;
+    private final BitSet used;
+    private final BitSet claimed;
+    private final String[] names;
+    private final int[] indexes;
+    private final Map<String, TreeSet<Integer>> byName = new HashMap<String, TreeSet<Integer>>();
+    private final Map<Integer, Integer> byIndex = new HashMap<Integer, Integer>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Empty index for a directory of the given number of inode slots
+     * @param slots
+     */
+    DirectoryIndex(int slots) {
+        this.slots = slots;
+        this.used = new BitSet(slots);
+        this.claimed = new BitSet(slots);
+        this.names = new String[slots];
+        this.indexes = new int[slots];
+    }
+
+    /**
+     * Record that slot now holds the file fileIndex called name
+     * @param slot
+     * @param fileIndex
+     * @param name
+     */
+    void add(int slot, int fileIndex, String name) {
+        lock.writeLock().lock();
+        try {
+            claimed.clear(slot);
+            used.set(slot);
+            names[slot] = name;
+            indexes[slot] = fileIndex;
+            String key = key(name);
+            TreeSet<Integer> set = byName.get(key);
+            if (set == null) {
+                set = new TreeSet<Integer>();
+                byName.put(key, set);
+            }
+            set.add(slot);
+            byIndex.put(fileIndex, slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget the file held in slot
+     * @param slot
+     */
+    void remove(int slot) {
+        lock.writeLock().lock();
+        try {
+            if (!used.get(slot)) {
+                return;
+            }
+            String key = key(names[slot]);
+            TreeSet<Integer> set = byName.get(key);
+            set.remove(slot);
+            if (set.isEmpty()) {
+                byName.remove(key);
+            }
+            byIndex.remove(indexes[slot]);
+            names[slot] = null;
+            indexes[slot] = 0;
+            used.clear(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param name
+     * @return slot of the first file with this name, or -1
+     */
+    int slotOf(String name) {
+        String key = key(name);
+        lock.readLock().lock();
+        try {
+            TreeSet<Integer> set = byName.get(key);
+            return set == null ? -1 : set.first();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param fileIndex
+     * @return slot of the file, or -1
+     */
+    int slotOf(int fileIndex) {
+        lock.readLock().lock();
+        try {
+            Integer slot = byIndex.get(fileIndex);
+            return slot == null ? -1 : slot;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reserve the lowest free slots for new files in one pass; each stays
+     * reserved until add() or release() is called for it
+     * @param count
+     * @return the slots, fewer than count when the directory fills up
+     */
+    int[] claimSlots(int count) {
+        lock.writeLock().lock();
+        try {
+            int[] claimedSlots = new int[count];
+            int n = 0;
+            for (int slot = used.nextClearBit(0); n < count && slot < slots; slot = used.nextClearBit(slot + 1)) {
+                if (!claimed.get(slot)) {
+                    claimed.set(slot);
+                    claimedSlots[n++] = slot;
+                }
+            }
+            return n == count ? claimedSlots : Arrays.copyOf(claimedSlots, n);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Give back a slot claimed for a file that was not created after all
+     * @param slot
+     */
+    void release(int slot) {
+        lock.writeLock().lock();
+        try {
+            claimed.clear(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param from
+     * @return first used slot at or after from, or -1
+     */
+    int nextUsedSlot(int from) {
+        lock.readLock().lock();
+        try {
+            return used.nextSetBit(from);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int fileCount() {
+        lock.readLock().lock();
+        try {
+            return used.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Case folding that matches String.equalsIgnoreCase char by char
+     */
+    private static String key(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,61 @@
+package os;
+
+import hardware.HDD;
+
+/**
+ * Background thread for NullFSOptions.DeleteMode.DISCARD: zeroes the data
+ * blocks of deleted files after the delete has returned, a large run per
+ * disk write, and hands them back to the allocator. Runs still queued when
+ * the disk fills up are reused without being zeroed, see BlockAllocator.
+ * 
+ * Runs are queued only once the delete that freed them has committed.
+ * NullFS.unmount stops the worker after the queue is empty and waits for
+ * it. The thread is a daemon, so a filesystem never unmounted does not keep
+ * the program alive; runs it has not reached by then are simply left with
+ * their old contents.
+ */
+class DiscardWorker implements Runnable {
+
+    /** Longest run zeroed by one disk write */
+    private static final int RUN_BLOCKS = 256;
+
+    private final BlockAllocator allocator;
+    private final HDD disk;
+    private final Superblock superblock;
+
+    private DiscardWorker(BlockAllocator allocator, HDD disk, Superblock superblock) {
+        this.allocator = allocator;
+        this.disk = disk;
+        this.superblock = superblock;
+    }
+
+    /**
+     * Start a worker on its own daemon thread
+     * @param allocator where deleted runs are queued
+     * @param disk data blocks are zeroed through
+     * @param superblock
+     * @return the thread
+     */
+    static Thread start(BlockAllocator allocator, HDD disk, Superblock superblock) {
+        Thread thread = new Thread(new DiscardWorker(allocator, disk, superblock), "NullFS discard");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Extent e = allocator.takeDiscard(RUN_BLOCKS);
+                if (e == null) {
+                    return;
+                }
+                disk.fill(superblock.blockLocation(e.getStart()), (long) e.getLength() * superblock.getBlockSize(), (byte) 0);
+                allocator.release(e);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package os;
+
+/**
+ * A run of consecutive data blocks: (start block, number of blocks).
+ */
+public class Extent {
+
+    private final int start;
+    private final int length;
+
+    public Extent(int start, int length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Block after the last block of this extent
+     * @return
+     */
+    public int getEnd() {
+        return start + length;
+    }
+
+    @Override
+    public String toString() {
+        return length == 1 ? String.valueOf(start) : start + "-" + (start + length - 1);
+    }
+}
@@ -0,0 +1,23 @@
+package os;
+
+/**
+ * Name and contents of a file to create, see Filesystem.newFiles.
+ */
+public class FileSpec {
+
+    private final String name;
+    private final byte[] contents;
+
+    public FileSpec(String name, byte[] contents) {
+        this.name = name;
+        this.contents = contents;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getContents() {
+        return contents;
+    }
+}
@@ -1,7 +1,13 @@
 package os;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
 /**
- * Framework code: no modification made.
+ * Framework code, extended with operations beyond create/delete/dump.
  */
 public interface Filesystem {
 
@@ -20,6 +26,16 @@ public interface Filesystem {
      */
     public int newFile(String filename, byte[] contents);
     
+    /**
+     * Create several files at once. Their blocks are allocated in one pass
+     * and stored together, and the filesystem header is updated once for
+     * the whole batch.
+     * @param files
+     * @return one result per file, in order, with the index of the file
+     * created or the reason it was not
+     */
+    public List<BatchResult> newFiles(List<FileSpec> files);
+    
     /**
      * Delete file at index
      * @param index
@@ -32,8 +48,210 @@ public interface Filesystem {
      */
     public void deleteFile(String filename);
     
+    /**
+     * Delete file at index and overwrite its data with zeroes, whatever the
+     * filesystem's delete mode, before returning
+     * @param index
+     */
+    public void eraseFile(int index);
+    
+    /**
+     * Delete file specified by full path/filename and overwrite its data
+     * with zeroes, see eraseFile(int)
+     * @param filename
+     */
+    public void eraseFile(String filename);
+    
+    /**
+     * Delete several files specified by full path/filename at once,
+     * updating the filesystem header once for the whole batch
+     * @param filenames
+     * @return one result per name, in order, with the index of the file
+     * deleted or NOT_FOUND
+     */
+    public List<BatchResult> deleteFiles(Collection<String> filenames);
+    
+    /**
+     * Delete several files by index at once, see deleteFiles(Collection)
+     * @param indexes
+     * @return one result per index, in order
+     */
+    public List<BatchResult> deleteFilesByIndex(Collection<Integer> indexes);
+    
+    /**
+     * Size of file at index
+     * @param index
+     * @return size in bytes, or -1 if there is no such file
+     */
+    public int fileSize(int index);
+    
+    /**
+     * Size of file specified by full path/filename
+     * @param filename
+     * @return size in bytes, or -1 if there is no such file
+     */
+    public int fileSize(String filename);
+    
+    /**
+     * Read file at index into dst starting at off, up to the end of the file
+     * or of the array
+     * @param index
+     * @param dst
+     * @param off
+     * @return number of bytes read, or -1 if there is no such file
+     * @throws IndexOutOfBoundsException if off is negative or past the end
+     * of dst
+     */
+    public int readFile(int index, byte[] dst, int off);
+    
+    /**
+     * Read file specified by full path/filename into dst starting at off, up
+     * to the end of the file or of the array
+     * @param filename
+     * @param dst
+     * @param off
+     * @return number of bytes read, or -1 if there is no such file
+     * @throws IndexOutOfBoundsException see readFile(int, byte[], int)
+     */
+    public int readFile(String filename, byte[] dst, int off);
+    
+    /**
+     * Read the whole of a file specified by full path/filename, its size
+     * and contents taken together
+     * @param filename
+     * @return the contents, or null if there is no such file
+     */
+    public byte[] readFile(String filename);
+    
+    /**
+     * Read file at index into dst, up to the end of the file or dst.remaining()
+     * bytes, advancing the buffer position
+     * @param index
+     * @param dst
+     * @return number of bytes read, or -1 if there is no such file
+     */
+    public int readFile(int index, ByteBuffer dst);
+    
+    /**
+     * Read file specified by full path/filename into dst, up to the end of
+     * the file or dst.remaining() bytes, advancing the buffer position
+     * @param filename
+     * @param dst
+     * @return number of bytes read, or -1 if there is no such file
+     */
+    public int readFile(String filename, ByteBuffer dst);
+    
+    /**
+     * Read-only view over the contents of file at index, without copying.
+     * Only available when the file is stored uncompressed and contiguously
+     * and the disk can expose its storage, or is small enough to be kept
+     * with its meta-data;
+     * the view is valid until the file is deleted or moved by defragment.
+     * @param index
+     * @return the view, or null if there is no such file or no view can be
+     * provided
+     */
+    public ByteBuffer mapFile(int index);
+    
+    /**
+     * Read-only view over the contents of file specified by full
+     * path/filename, see mapFile(int)
+     * @param filename
+     * @return the view, or null if there is no such file or no view can be
+     * provided
+     */
+    public ByteBuffer mapFile(String filename);
+    
+    /**
+     * Add contents to the end of file at index
+     * @param index
+     * @param contents
+     * @return false if there is no such file or not enough space
+     */
+    public boolean append(int index, byte[] contents);
+    
+    /**
+     * Add contents to the end of file specified by full path/filename
+     * @param filename
+     * @param contents
+     * @return false if there is no such file or not enough space
+     */
+    public boolean append(String filename, byte[] contents);
+    
+    /**
+     * Stream the contents of file at index, reading ahead a few blocks at a
+     * time. Channels.newChannel turns it into a ReadableByteChannel.
+     * @param index
+     * @return the stream, or null if there is no such file
+     */
+    public InputStream openInputStream(int index);
+    
+    /**
+     * Stream the contents of file specified by full path/filename, see
+     * openInputStream(int)
+     * @param filename
+     * @return the stream, or null if there is no such file
+     */
+    public InputStream openInputStream(String filename);
+    
+    /**
+     * Create an empty file and stream contents into it. Blocks are allocated
+     * as data arrives, so the contents never need to be held in memory at
+     * once; close() writes the remainder. Channels.newChannel turns it into a
+     * WritableByteChannel.
+     * @param filename
+     * @return the stream, or null if the file cannot be created
+     */
+    public OutputStream openOutputStream(String filename);
+    
+    /**
+     * Stream contents onto the end of file at index, see
+     * openOutputStream(String)
+     * @param index
+     * @return the stream, or null if there is no such file
+     */
+    public OutputStream openAppendStream(int index);
+    
+    /**
+     * Extent counts of every file and the free space runs of the disk
+     * @return
+     */
+    public FragmentationReport fragmentationReport();
+    
+    /**
+     * Move fragmented files into contiguous runs, and files into holes
+     * nearer the start of the disk so that free space joins up, for about
+     * millis milliseconds, then return; the next call carries on where this one
+     * stopped. Each file is moved as one operation, so the files stay in use
+     * meanwhile, and a single large file may take longer than millis.
+     * @param millis
+     * @return true once a whole pass over the directory has found nothing
+     * left to move; the next call then starts a new pass
+     */
+    public boolean defragment(long millis);
+    
+    /**
+     * Check every inode and every block in use against the checksums the
+     * disk keeps (see NullFSOptions.setChecksums), and the free space bitmap
+     * against the blocks the inodes point to, using all processors
+     * @return the corrupt inodes and blocks, the blocks marked used that no
+     * file points to (leaked), and those marked free that a file points to
+     */
+    public ScrubReport scrub();
+    
     /**
      * Print all data stored on filesystem in readable format
      */
     public void dumpContents();
+    
+    /**
+     * Write any cached filesystem meta-data to disk and flush the disk
+     */
+    public void sync();
+    
+    /**
+     * Finish the background work on deleted files, then sync(). The
+     * filesystem is not to be used afterwards
+     */
+    public void unmount();
 }
@@ -0,0 +1,101 @@
+package os;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How scattered the files and the free space of a filesystem are, see
+ * Filesystem.fragmentationReport. The figures are gathered file by file
+ * while the filesystem stays in use, so they need not describe one single
+ * moment.
+ */
+public class FragmentationReport {
+
+    private final Map<Integer, Integer> extentCounts = new LinkedHashMap<Integer, Integer>();
+    private final long[] freeRunHistogram = new long[32];
+    private int totalExtents;
+    private int fragmentedFiles;
+    private int freeRuns;
+    private int freeBlocks;
+    private int largestFreeRun;
+
+    void addFile(int index, int extents) {
+        extentCounts.put(index, extents);
+        totalExtents += extents;
+        if (extents > 1) {
+            fragmentedFiles++;
+        }
+    }
+
+    void addFreeRun(int length) {
+        freeRunHistogram[31 - Integer.numberOfLeadingZeros(length)]++;
+        freeRuns++;
+        freeBlocks += length;
+        largestFreeRun = Math.max(largestFreeRun, length);
+    }
+
+    /**
+     * Number of extents of each file
+     * @return file index to extent count, in directory order
+     */
+    public Map<Integer, Integer> getExtentCounts() {
+        return Collections.unmodifiableMap(extentCounts);
+    }
+
+    public int getFileCount() {
+        return extentCounts.size();
+    }
+
+    /**
+     * @return files stored in more than one extent
+     */
+    public int getFragmentedFiles() {
+        return fragmentedFiles;
+    }
+
+    public int getTotalExtents() {
+        return totalExtents;
+    }
+
+    /**
+     * Free runs by length: entry i counts the runs of 2^i to 2^(i+1) - 1
+     * blocks
+     * @return
+     */
+    public long[] getFreeRunHistogram() {
+        return freeRunHistogram.clone();
+    }
+
+    public int getFreeRuns() {
+        return freeRuns;
+    }
+
+    public int getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    /**
+     * @return length in blocks of the longest free run, the largest file
+     * that can still be stored contiguously
+     */
+    public int getLargestFreeRun() {
+        return largestFreeRun;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("Files: ").append(getFileCount()).append(", fragmented: ").append(fragmentedFiles)
+                .append(", extents: ").append(totalExtents).append('\n');
+        s.append("Free blocks: ").append(freeBlocks).append(" in ").append(freeRuns)
+                .append(" runs, largest: ").append(largestFreeRun);
+        for (int i = 0; i < freeRunHistogram.length; i++) {
+            if (freeRunHistogram[i] > 0) {
+                s.append('\n').append("  runs of ").append(1L << i).append('-').append((1L << (i + 1)) - 1)
+                        .append(" blocks: ").append(freeRunHistogram[i]);
+            }
+        }
+        return s.toString();
+    }
+}
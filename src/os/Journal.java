@@ -0,0 +1,632 @@
+package os;
+
+import hardware.HDD;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for filesystem meta-data. Meta-data writes do not go to
+ * their place on disk straight away: they are held in memory, where reads
+ * through the journal see them, until the transaction they belong to commits.
+ * A commit writes them to the journal region as one checksummed record,
+ * forces the disk, and only then writes them in place. After a crash,
+ * replay() writes the last committed records in place again, so an operation
+ * is either fully on disk or not at all.
+ *
+ * Operations run between begin() and end() and then wait in commit(). The
+ * first one to wait commits for everybody: it stops new operations from
+ * starting, lets the running ones finish, and commits all of their changes
+ * with one journal write (group commit). New operations start again once
+ * the changes are in place, and the next commit waits until all of the
+ * operations held up meanwhile have joined, so they share it. Once the
+ * pending changes fill the region, operations wait in begin() for them to
+ * commit rather than join, so a group is split only between operations.
+ *
+ * The region holds a single record. Every commit forces the disk before it
+ * logs, which puts the in-place writes of the commit before it on disk, so
+ * the record it overwrites is never needed again; and a block freed by a
+ * transaction can be reused as soon as it commits, since a stale record
+ * for it is overwritten before anything reusing it is committed. A group
+ * too large for the region has its records spilled to free data blocks lent
+ * by the allocator (see setSpill()), the region listing where they are; the
+ * CRC covers them too, so the group is still replayed whole or not at all.
+ * The spill blocks are given back once the in-place writes are forced.
+ *
+ * Data blocks are not journaled. They are written in place before their
+ * meta-data commits, and the disk is forced before the journal write.
+ *
+ * Journal region: |- magic 4 bytes -|- sequence 8 bytes -|- record count 4 bytes -|- payload length 4 bytes -|- spill run count 4 bytes -|- spill runs -|- records, unless spilled -|- CRC32 of all before and of the records 4 bytes -|
+ * spill run: |- disk position 8 bytes -|- length 4 bytes -|, the records continue from one run to the next
+ * record: |- disk position 8 bytes -|- length 4 bytes -|- bytes -|
+ *
+ * Regions written by earlier releases hold a record of the older layout in
+ * each half; replay() still applies them.
+ *
+ * With a region of length 0 the journal is disabled and writes go straight
+ * through to the disk.
+ */
+class Journal extends HDD {
+
+    private static final int MAGIC = 0x4E464A32;
+    private static final int HEADER = 24;
+    private static final int RUN = 12;
+    private static final int RECORD_HEADER = 12;
+
+    // record of the two-halves layout: magic, sequence, count, payload length
+    private static final int HALF_MAGIC = 0x4E464A4C;
+    private static final int HALF_HEADER = 20;
+
+    private final HDD device;
+    private final long start;
+    private final int length;
+
+    // where oversized commits are spilled to, see setSpill()
+    private BlockAllocator spill;
+    private long dataStart;
+    private int blockSize;
+
+    // meta-data written since the last commit, as non-overlapping ranges by disk position
+    private final TreeMap<Long, byte[]> pending = new TreeMap<Long, byte[]>();
+    private long pendingBytes;   // pending as records: headers and bytes
+
+    private int active;          // operations between begin() and end()
+    private int blocked;         // operations waiting in begin() for a commit to finish
+    private boolean committing;  // a commit is in progress, begin() waits
+    private long running = 1;    // sequence of the transaction operations join
+    private long committed;      // last sequence committed
+    private long failed;         // last sequence whose commit failed
+    private RuntimeException failure; // why it failed
+    private long logged;         // sequence of the last record written
+    private volatile long generation; // bumped when pending writes reach the disk
+
+    private long commits;
+    private long operations;
+
+    /**
+     * @param device the disk, possibly behind a buffer cache
+     * @param start disk position of the journal region
+     * @param length bytes in the journal region, 0 to disable journaling
+     */
+    Journal(HDD device, long start, int length) {
+        this.device = device;
+        this.start = start;
+        this.length = length;
+        this.size = device.capacity();
+    }
+
+    boolean isEnabled() {
+        return length > HEADER + RUN + 4;
+    }
+
+    /**
+     * Let commits larger than the region spill to free data blocks, lent by
+     * the allocator for the time of the commit. Without it such a commit
+     * fails.
+     * @param allocator
+     * @param dataStart disk position of data block 0
+     * @param blockSize
+     */
+    synchronized void setSpill(BlockAllocator allocator, long dataStart, int blockSize) {
+        this.spill = allocator;
+        this.dataStart = dataStart;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Zero the region, so nothing left on the disk by an earlier filesystem
+     * is taken for a record. Called by format before the first commit.
+     */
+    void clear() {
+        if (isEnabled()) {
+            device.fill(start, length, (byte) 0);
+            device.force();
+        }
+    }
+
+    /**
+     * Join the running transaction, waiting for a commit in progress first,
+     * and committing the pending changes first if they fill the region.
+     * Must be called before taking any lock an operation might wait for.
+     * @return the sequence of the transaction, for commit()
+     * @throws RuntimeException if the changes filling the region cannot be
+     * committed
+     */
+    long begin() {
+        while (true) {
+            long full;
+            synchronized (this) {
+                if (!isEnabled() || pendingBytes < length - HEADER - 4) {
+                    boolean interrupted = false;
+                    if (committing) {
+                        blocked++;
+                        while (committing) {
+                            interrupted |= await();
+                        }
+                        blocked--;
+                        if (blocked == 0) {
+                            notifyAll();
+                        }
+                    }
+                    active++;
+                    operations++;
+                    restore(interrupted);
+                    return running;
+                }
+                full = running;
+            }
+            commit(full);
+        }
+    }
+
+    /**
+     * Leave the transaction joined by begin(); its changes are complete.
+     */
+    synchronized void end() {
+        active--;
+        if (active == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the transaction is committed, committing it along with
+     * every other finished operation when no other thread is doing so.
+     * @param sequence returned by begin()
+     * @throws RuntimeException if the commit the transaction was part of
+     * failed; its changes stay pending, and go with the next commit
+     */
+    void commit(long sequence) {
+        long closing;
+        TreeMap<Long, byte[]> records;
+        synchronized (this) {
+            boolean interrupted = false;
+            while (committed < sequence && (committing || blocked > 0)) {
+                interrupted |= await();
+            }
+            if (committed >= sequence) {
+                restore(interrupted);
+                return;
+            }
+            if (failed >= sequence) {
+                restore(interrupted);
+                throw new RuntimeException("journal commit failed", failure);
+            }
+            committing = true;
+            while (active > 0) {
+                interrupted |= await();
+            }
+            restore(interrupted);
+            closing = running++;
+            records = new TreeMap<Long, byte[]>(pending);
+        }
+        try {
+            if (!records.isEmpty()) {
+                write(records);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                generation++; // some records may have been written in place
+                failed = closing;
+                failure = e;
+                committing = false;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            pending.clear();
+            pendingBytes = 0;
+            generation++;
+            committed = closing;
+            committing = false;
+            if (!records.isEmpty()) {
+                commits++;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for a commit in progress and for the running operations to
+     * finish, and keep new ones from starting until resume(), for a pass
+     * that must see no operation half done. Changes of operations that have
+     * ended but not committed stay pending, visible to reads.
+     */
+    synchronized void pause() {
+        boolean interrupted = false;
+        while (committing) {
+            interrupted |= await();
+        }
+        committing = true;
+        while (active > 0) {
+            interrupted |= await();
+        }
+        restore(interrupted);
+    }
+
+    /**
+     * Let operations start again after pause().
+     */
+    synchronized void resume() {
+        committing = false;
+        notifyAll();
+    }
+
+    /**
+     * Apply the transaction recorded in the journal region, or those of the
+     * older two-halves layout, oldest first. Called when the filesystem is
+     * opened, before anything else is read.
+     * @return number of transactions applied
+     */
+    synchronized int replay() {
+        if (!isEnabled()) {
+            return 0;
+        }
+        byte[] b = new byte[length];
+        device.read(start, b, 0, length);
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        if (buf.getInt(0) != MAGIC) {
+            int applied = replayHalves(b);
+            // a torn record of the new layout must not leave an older half
+            // record to be taken for the last one
+            device.fill(start, length, (byte) 0);
+            device.force();
+            return applied;
+        }
+        byte[] payload = readRecord(buf);
+        if (payload == null) {
+            return 0;
+        }
+        apply(ByteBuffer.wrap(payload), buf.getInt(12));
+        logged = buf.getLong(4);
+        device.force();
+        return 1;
+    }
+
+    /**
+     * Check the record in the region and collect its records, from the
+     * region or from the spill runs.
+     * @param buf the region
+     * @return the records, or null when the record is torn or missing
+     */
+    private byte[] readRecord(ByteBuffer buf) {
+        int payloadLength = buf.getInt(16);
+        int runs = buf.getInt(20);
+        if (runs < 0 || runs > (length - HEADER - 4) / RUN || payloadLength < 0) {
+            return null;
+        }
+        int end = HEADER + runs * RUN + (runs == 0 ? payloadLength : 0);
+        if (end < 0 || end > length - 4) {
+            return null;
+        }
+        byte[] payload;
+        if (runs == 0) {
+            payload = Arrays.copyOfRange(buf.array(), HEADER, end);
+        } else {
+            payload = new byte[payloadLength];
+            int off = 0;
+            for (int r = 0; r < runs; r++) {
+                long pos = buf.getLong(HEADER + r * RUN);
+                int n = Math.min(buf.getInt(HEADER + r * RUN + 8), payloadLength - off);
+                if (pos < 0 || n < 0 || pos + n > device.capacity()) {
+                    return null;
+                }
+                device.read(pos, payload, off, n);
+                off += n;
+            }
+            if (off != payloadLength) {
+                return null;
+            }
+        }
+        CRC32 crc = new CRC32();
+        if (runs == 0) {
+            crc.update(buf.array(), 0, end);
+        } else {
+            crc.update(buf.array(), 0, HEADER + runs * RUN);
+            crc.update(payload, 0, payloadLength);
+        }
+        if ((int) crc.getValue() != buf.getInt(end)) {
+            return null;
+        }
+        return payload;
+    }
+
+    /**
+     * Replay a region of the two-halves layout: each half holds a record,
+     * both are applied, older first.
+     */
+    private int replayHalves(byte[] region) {
+        int half = length / 2;
+        byte[][] halves = new byte[2][];
+        long[] sequences = new long[2];
+        for (int i = 0; i < 2; i++) {
+            byte[] b = Arrays.copyOfRange(region, i * half, (i + 1) * half);
+            ByteBuffer buf = ByteBuffer.wrap(b);
+            int len = buf.getInt(16);
+            if (buf.getInt(0) != HALF_MAGIC || len < 0 || len > half - HALF_HEADER - 4) {
+                continue;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(b, 0, HALF_HEADER + len);
+            if ((int) crc.getValue() != buf.getInt(HALF_HEADER + len)) {
+                continue;
+            }
+            halves[i] = b;
+            sequences[i] = buf.getLong(4);
+        }
+        int applied = 0;
+        int first = halves[0] != null && (halves[1] == null || sequences[0] < sequences[1]) ? 0 : 1;
+        for (int i = first, n = 0; n < 2; i = 1 - i, n++) {
+            if (halves[i] == null) {
+                continue;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(halves[i]);
+            int count = buf.getInt(12);
+            buf.position(HALF_HEADER);
+            apply(buf, count);
+            logged = sequences[i];
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Write count records, read from buf's position on, in place.
+     */
+    private void apply(ByteBuffer buf, int count) {
+        for (int r = 0; r < count; r++) {
+            long pos = buf.getLong();
+            int len = buf.getInt();
+            device.write(pos, buf.array(), buf.position(), len);
+            buf.position(buf.position() + len);
+        }
+    }
+
+    /** Groups of operations committed, each costing one journal write */
+    synchronized long getCommits() {
+        return commits;
+    }
+
+    /** Operations that have joined a transaction */
+    synchronized long getOperations() {
+        return operations;
+    }
+
+    @Override
+    public void write(byte b) {
+        write(index, new byte[] { b }, 0, 1);
+        index++;
+    }
+
+    @Override
+    public byte read() {
+        byte[] b = new byte[1];
+        read(index, b, 0, 1);
+        index++;
+        return b[0];
+    }
+
+    /**
+     * Read from the disk, overlaid with meta-data written but not yet in
+     * place.
+     */
+    @Override
+    public void read(long pos, byte[] dst, int off, int len) {
+        checkRange(pos, len);
+        while (true) {
+            long g = generation;
+            device.read(pos, dst, off, len);
+            synchronized (this) {
+                if (g != generation) {
+                    continue; // a commit wrote in place meanwhile, read again
+                }
+                overlay(pos, dst, off, len);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void write(long pos, byte[] src, int off, int len) {
+        checkRange(pos, len);
+        if (!isEnabled()) {
+            device.write(pos, src, off, len);
+            return;
+        }
+        byte[] copy = new byte[len];
+        System.arraycopy(src, off, copy, 0, len);
+        synchronized (this) {
+            hold(pos, copy);
+        }
+    }
+
+    @Override
+    public void fill(long pos, long len, byte value) {
+        checkRange(pos, len);
+        if (!isEnabled()) {
+            device.fill(pos, len, value);
+            return;
+        }
+        byte[] b = new byte[(int) len];
+        if (value != 0) {
+            Arrays.fill(b, value);
+        }
+        synchronized (this) {
+            hold(pos, b);
+        }
+    }
+
+    @Override
+    public void read(long pos, ByteBuffer dst) {
+        byte[] b = new byte[dst.remaining()];
+        read(pos, b, 0, b.length);
+        dst.put(b);
+    }
+
+    @Override
+    public void write(long pos, ByteBuffer src) {
+        byte[] b = new byte[src.remaining()];
+        src.get(b);
+        write(pos, b, 0, b.length);
+    }
+
+    /**
+     * Pending meta-data may differ from the disk, so no view is offered.
+     */
+    @Override
+    public ByteBuffer view(long pos, int len) {
+        return null;
+    }
+
+    @Override
+    public void force() {
+        device.force();
+    }
+
+    /**
+     * Add a write to the pending ranges, merging it with those it overlaps
+     * or touches.
+     */
+    private void hold(long pos, byte[] data) {
+        long from = pos;
+        long to = pos + data.length;
+        Map.Entry<Long, byte[]> before = pending.floorEntry(pos);
+        if (before != null && before.getKey() + before.getValue().length >= pos) {
+            from = before.getKey();
+        }
+        SortedMap<Long, byte[]> touched = pending.subMap(from, true, to, true);
+        if (!touched.isEmpty()) {
+            long lastKey = touched.lastKey();
+            to = Math.max(to, lastKey + touched.get(lastKey).length);
+        }
+        byte[] merged = data;
+        for (byte[] b : touched.values()) {
+            pendingBytes -= RECORD_HEADER + b.length;
+        }
+        if (from != pos || to != pos + data.length) {
+            merged = new byte[(int) (to - from)];
+            for (Map.Entry<Long, byte[]> e : touched.entrySet()) {
+                System.arraycopy(e.getValue(), 0, merged, (int) (e.getKey() - from), e.getValue().length);
+            }
+            System.arraycopy(data, 0, merged, (int) (pos - from), data.length);
+        }
+        touched.clear();
+        pending.put(from, merged);
+        pendingBytes += RECORD_HEADER + merged.length;
+    }
+
+    /**
+     * Copy the pending bytes within [pos, pos + len) over dst.
+     */
+    private void overlay(long pos, byte[] dst, int off, int len) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long end = pos + len;
+        Long from = pending.floorKey(pos);
+        for (Map.Entry<Long, byte[]> e : pending.subMap(from == null ? pos : from, true, end, false).entrySet()) {
+            long s = Math.max(pos, e.getKey());
+            long t = Math.min(end, e.getKey() + e.getValue().length);
+            if (s < t) {
+                System.arraycopy(e.getValue(), (int) (s - e.getKey()), dst, off + (int) (s - pos), (int) (t - s));
+            }
+        }
+    }
+
+    /**
+     * Make records durable, then write them in place. Runs with no operation
+     * active, so the records hold whole operations only. Records that do not
+     * fit in the region are spilled to blocks lent by the allocator, given
+     * back once the in-place writes are forced.
+     */
+    private void write(TreeMap<Long, byte[]> records) {
+        int payloadLength = 0;
+        for (byte[] data : records.values()) {
+            payloadLength = Math.addExact(payloadLength, RECORD_HEADER + data.length);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        for (Map.Entry<Long, byte[]> e : records.entrySet()) {
+            payload.putLong(e.getKey()).putInt(e.getValue().length).put(e.getValue());
+        }
+
+        List<Extent> runs = null;
+        if (HEADER + payloadLength + 4 > length) {
+            runs = lend(payloadLength);
+        }
+        int runCount = runs == null ? 0 : runs.size();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + runCount * RUN + (runs == null ? payloadLength : 0) + 4);
+        buf.putInt(MAGIC).putLong(++logged).putInt(records.size()).putInt(payloadLength).putInt(runCount);
+        CRC32 crc = new CRC32();
+        // data written by the operations, and the in-place writes of the
+            // record this one overwrites, go first
+        device.force();
+        if (runs == null) {
+            buf.put(payload.array());
+            crc.update(buf.array(), 0, buf.position());
+        } else {
+            int off = 0;
+            for (Extent run : runs) {
+                long pos = dataStart + (long) run.getStart() * blockSize;
+                int n = (int) Math.min((long) run.getLength() * blockSize, payloadLength - off);
+                buf.putLong(pos).putInt(n);
+                device.write(pos, payload.array(), off, n);
+                off += n;
+            }
+            crc.update(buf.array(), 0, buf.position());
+            crc.update(payload.array(), 0, payloadLength);
+        }
+        buf.putInt((int) crc.getValue());
+        device.write(start, buf.array(), 0, buf.position());
+        device.force();
+
+        payload.flip();
+        apply(payload, records.size());
+        if (runs != null) {
+            // the record must not be needed by the time its blocks are
+            // reused; after a failure they stay lent until the next mount
+            device.force();
+            spill.release(runs);
+        }
+    }
+
+    /**
+     * Borrow free data blocks for bytes of records that do not fit in the
+     * region, as at most as many runs as the region can list.
+     */
+    private List<Extent> lend(int bytes) {
+        if (spill == null) {
+            throw new RuntimeException("journal commit of " + bytes + " bytes does not fit the " + length + " byte journal");
+        }
+        int blocks = (int) (((long) bytes + blockSize - 1) / blockSize);
+        List<Extent> runs = spill.lend(blocks, (length - HEADER - 4) / RUN);
+        if (runs == null) {
+            throw new RuntimeException("no free blocks to log a " + bytes + " byte journal commit to");
+        }
+        return runs;
+    }
+
+    /**
+     * Object.wait() that does not give up when interrupted.
+     * @return whether the thread was interrupted
+     */
+    private boolean await() {
+        try {
+            wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private static void restore(boolean interrupted) {
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package os;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies in power-of-two buckets of nanoseconds: bucket i counts the
+ * samples of 2^i to 2^(i+1) - 1 ns, bucket 0 also those of 0 ns. Percentiles
+ * are therefore known to within a factor of two. Safe for concurrent use.
+ */
+public class LatencyHistogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+        count.increment();
+        total.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return total.sum();
+    }
+
+    public long getMeanNanos() {
+        long n = getCount();
+        return n == 0 ? 0 : getTotalNanos() / n;
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * Upper bound of the bucket holding the given fraction of the samples,
+     * capped at the largest sample
+     * @param fraction 0.5 for the median, 0.99 for the 99th percentile
+     * @return the latency, 0 when there are no samples
+     */
+    public long getPercentileNanos(double fraction) {
+        long[] b = getBuckets();
+        long n = 0;
+        for (long c : b) {
+            n += c;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < b.length; i++) {
+            seen += b[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(getMaxNanos(), (2L << i) - 1);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return sample count of each bucket
+     */
+    public long[] getBuckets() {
+        long[] b = new long[buckets.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = buckets.get(i);
+        }
+        return b;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return getCount() + " ops, mean " + getMeanNanos() / 1000 + " us, p50 " + getPercentileNanos(0.5) / 1000
+                + " us, p99 " + getPercentileNanos(0.99) / 1000 + " us, max " + getMaxNanos() / 1000 + " us";
+    }
+}
@@ -1,5 +1,8 @@
 package os;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * this class represents an inode on disk, each for a file
  *
@@ -8,8 +11,13 @@ public class MetaData {
 	
 	private int index;
 	private String fileName;
-	private int[] blocks;
-	private int location; // location on disk in bytes
+	private int size;
+	private List<Extent> extents = new ArrayList<Extent>();
+	private int extentCount;
+	private List<Integer> pointerBlocks = new ArrayList<Integer>();
+	private long location; // location on disk in bytes
+	private byte[] inlineData; // contents kept in the inode instead of blocks, or null
+	private int storedSize; // bytes of the compressed form in the blocks, 0 if stored as is
 	
 	
 	public int getIndex() {
@@ -24,18 +32,87 @@ public class MetaData {
 	public void setFileName(String fileName) {
 		this.fileName = fileName;
 	}
-	public int[] getBlocks() {
-		return blocks;
+	public int getSize() {
+		return size;
+	}
+	public void setSize(int size) {
+		this.size = size;
+	}
+	/**
+	 * the file's extents; only the direct ones from the inode until the
+	 * filesystem has loaded the rest, see isLoaded()
+	 */
+	public List<Extent> getExtents() {
+		return extents;
+	}
+	public void setExtents(List<Extent> extents) {
+		this.extents = extents;
+		this.extentCount = extents.size();
+	}
+	public int getExtentCount() {
+		return extentCount;
+	}
+	public void setExtentCount(int extentCount) {
+		this.extentCount = extentCount;
+	}
+	/**
+	 * whether getExtents() holds every extent of the file
+	 */
+	public boolean isLoaded() {
+		return extents.size() == extentCount;
+	}
+	/**
+	 * the indirect block, then the double-indirect block, then the blocks it
+	 * points to; only the first two until the extents are loaded
+	 */
+	public List<Integer> getPointerBlocks() {
+		return pointerBlocks;
 	}
-	public void setBlocks(int[] blocks) {
-		this.blocks = blocks;
+	public void setPointerBlocks(List<Integer> pointerBlocks) {
+		this.pointerBlocks = pointerBlocks;
 	}
-	public int getLocation() {
+	public int getIndirectBlock() {
+		return pointerBlocks.size() > 0 ? pointerBlocks.get(0) : -1;
+	}
+	public int getDoubleIndirectBlock() {
+		return pointerBlocks.size() > 1 ? pointerBlocks.get(1) : -1;
+	}
+	public long getLocation() {
 		return location;
 	}
-	public void setLocation(int location) {
+	public void setLocation(long location) {
 		this.location = location;
 	}
+	/**
+	 * the file's contents when they are kept in the inode, in which case it
+	 * has no extents; null for a file stored in blocks
+	 */
+	public byte[] getInlineData() {
+		return inlineData;
+	}
+	public void setInlineData(byte[] inlineData) {
+		this.inlineData = inlineData;
+	}
+	/**
+	 * bytes the file's blocks hold when it is compressed, see ChunkCodec;
+	 * 0 for a file stored as it is, whose blocks hold getSize() bytes
+	 */
+	public int getStoredSize() {
+		return storedSize;
+	}
+	public void setStoredSize(int storedSize) {
+		this.storedSize = storedSize;
+	}
+	/**
+	 * total number of data blocks in all extents
+	 */
+	public int getBlockCount() {
+		int n = 0;
+		for (Extent e : extents) {
+			n += e.getLength();
+		}
+		return n;
+	}
 
 	
 	
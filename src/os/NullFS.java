@@ -1,32 +1,135 @@
 package os;
 
 import hardware.HDD;
+import hardware.QueuedHDD;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Note:
  * 
  * 1. This file system uses i-node for storing meta-data of each file.
  * 2. Meta-data in i-node includes: the file name, size and pointers to file data.
- * 3. File data is divided into several blocks, saved in uncontiguous style on disk.
- * 4. Deleting file will result empty block on disk, and can be used by other new created file.
+ * 3. File data is divided into extents (runs of consecutive blocks), the allocator prefers a single run per file.
+ * 4. Deleting a file frees its blocks for new files. Their old contents are zeroed only when asked for,
+ *    by eraseFile or NullFSOptions.DeleteMode, so a delete costs the same whatever the file's size.
+ * 5. Operations may run on several threads at once. Each root directory slot maps to one of a set of
+ *    striped read/write locks: reads of a file share its lock, changes to it take the lock exclusively.
+ *    The allocator, superblock and directory index guard their own state, so operations on different
+ *    files only meet while allocating blocks.
+ * 6. Each operation that changes the disk is one journal transaction, committed before it returns.
+ *    Transactions of concurrent operations are committed together.
+ * 7. Disk positions are longs, so a disk may exceed 2 GB (see OffHeapHDD and MappedHDD); block numbers
+ *    and file sizes are ints.
+ * 8. Files of up to 64 bytes are kept inline in their inode, so creating or reading one touches no data
+ *    block; appending past that moves the data to blocks. Only disks formatted with superblock version 3
+ *    or later hold inline files.
+ * 9. A disk formatted with NullFSOptions.setDedup stores each distinct whole block of file data once: files
+ *    with the same blocks share them, each block counting its references, and a delete frees only the
+ *    blocks no other file uses (see DedupIndex). Files are stored one at a time then, each sharing the
+ *    blocks of those before it, and the defragmenter leaves files with shared blocks where they are.
+ * 10. With NullFSOptions.setCompression, a file whose compressed form takes fewer blocks is stored that way,
+ *    in chunks inflated independently (see ChunkCodec), so a read inflates only the chunks it touches and an
+ *    append re-encodes only the last one. The inode records both sizes; disks formatted before superblock
+ *    version 5 have no room for the second and store files as they are.
+ * 11. A disk formatted with NullFSOptions.setChecksums keeps a CRC32C of every data block and inode (see
+ *    BlockChecksums), checked on every read; a mismatch throws ChecksumException. scrub() checks the whole
+ *    disk at once, and the bitmap against the inodes, on all processors.
  * 
- * Disk: |- block array size 4 bytes -|- block array indicate free one # bytes -|- total number of blocks 4 bytes -|- number of blocks used 4 bytes -|- number of files 4 bytes -|- length of metadata 4 bytes-|- meta-data list -|- file data blocks -|
- * inode: |- file index 4 bytes -|- file size 4 bytes-|- file name len 4 bytes -|- file name 200 bytes -|- list of data blocks (1024 * 4) -| -> 
- * file blocks: |- 1024 bytes -|
+ * Disk: |- superblock 64 bytes (32 in version 1, 48 in versions 2 and 3, 56 in 4 and 5) -|- journal -|- block bitmap, 1 bit per block # bytes -|- dedup table, 12 bytes per block when enabled -|- checksum table, 4 bytes per block and per inode when enabled -|- meta-data list -|- padding to a multiple of the block size, from version 7 -|- file data blocks -|
+ * superblock: see Superblock, loaded once and written back once per operation
+ * journal: see Journal, every change to the superblock, bitmap, dedup and checksum tables, inodes and indirect blocks goes through it
+ * inode: |- file index 4 bytes -|- file size 4 bytes-|- file name len 4 bytes -|- file name 50 bytes, UTF-8 -|- extent count 4 bytes -|- indirect block 4 bytes -|- double-indirect block 4 bytes -|- extents 8 * (start 4 bytes, length 4 bytes) -|- stored size 4 bytes, from version 5 -|
+ * stored size: bytes of the compressed form the file's blocks hold, 0 when they hold the file as it is
+ * inline inode: as above with extent count 0 and no pointer blocks, the file's data (at most 64 bytes) in place of the extents
+ * indirect block: |- extents (start 4 bytes, length 4 bytes) ... -| for the extents after the 8 kept in the inode
+ * double-indirect block: |- (indirect block 4 bytes, first file block 4 bytes) ... -| for the extents after those, so an offset is found with one binary search
+ * file blocks: |- blockSize bytes -|
  * 
  */
 public class NullFS implements Filesystem {
 
     private HDD disk;
     private int blockSize;
-    private int fatSize;
     private int rootDirectorySize;
+    private Superblock superblock;
+    private BlockAllocator allocator;
+    private DirectoryIndex directory;
+    private BufferCache cache;
+    private QueuedHDD queue;
+    private Journal journal;
+    private NullFSOptions.DeleteMode deleteMode;
+    private NullFSMetrics metrics;
+    private Thread discardWorker; // null unless the delete mode is DISCARD, until unmount
+    private boolean inline;
+    private DedupIndex dedup; // null unless the disk was formatted for deduplication
+    private BlockChecksums checksums; // null unless the disk was formatted with checksums
+    private boolean compressible; // inodes record a stored size
+    private boolean compress; // new files are compressed when that saves blocks
     
-    // maximum length of file name (chars)
+    // maximum length of file name (chars), and of its UTF-8 form in the inode (bytes)
     private int maxLen4Filename = 25;
+    private static final int NAME_BYTES = 50;
+    
+    // blocks read ahead by input streams and buffered by output streams
+    private static final int READ_AHEAD_BLOCKS = 16;
+    private static final int WRITE_BEHIND_BLOCKS = 16;
+    private static final int MOVE_BLOCKS = 64; // blocks copied per transfer by the defragmenter
+    
+    // extents stored in the inode itself, the rest go to indirect blocks
+    private static final int DIRECT_EXTENTS = 8;
+    private static final int EXTENT_LEN = 8;
+    private static final int NO_BLOCK = -1;
+    
+    // inode field offsets
+    private static final int EXTENT_COUNT_OFFSET = 4 + 4 + 4 + 25 * 2;
+    private static final int INDIRECT_OFFSET = EXTENT_COUNT_OFFSET + 4;
+    private static final int DOUBLE_INDIRECT_OFFSET = INDIRECT_OFFSET + 4;
+    private static final int EXTENTS_OFFSET = DOUBLE_INDIRECT_OFFSET + 4;
+    
+    // bytes of file data an inode can hold in place of its extents
+    private static final int INLINE_MAX = DIRECT_EXTENTS * EXTENT_LEN;
+    
+    // stored size of a compressed file, after the extents from superblock version 5 on
+    private static final int STORED_SIZE_OFFSET = EXTENTS_OFFSET + DIRECT_EXTENTS * EXTENT_LEN;
+    
+    // raw indirect blocks kept in memory, least recently used first, guarded by its own lock
+    private static final int POINTER_CACHE_BLOCKS = 64;
+    private LinkedHashMap<Integer, byte[]> pointerCache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+    
+    // per slot locks, slot i uses slotLocks[i % SLOT_LOCK_STRIPES]
+    private static final int SLOT_LOCK_STRIPES = 64;
     
-    // length for each file's meta-data
-    // private int len4metadata;
+    // bytes of the inode table read per transfer, and per thread, when mounting
+    private static final int INDEX_CHUNK = 1 << 20;
+    
+    // smallest journal region, listing enough spill runs for a commit that
+    // does not fit in it even on a fragmented disk
+    private static final int MIN_JOURNAL = 1024;
+    private final ReentrantReadWriteLock[] slotLocks = new ReentrantReadWriteLock[SLOT_LOCK_STRIPES];
+    
+    // defragmenter progress: next slot to look at, slots in a row found with nothing to move
+    private int defragSlot;
+    private int defragClean;
 
     /**
      * Destructively initialise a disk with filesystem meta-data ready for use
@@ -36,7 +139,40 @@ public class NullFS implements Filesystem {
      * @return A new filesystem instance now written to that disk
      */
     public static Filesystem format(HDD hdd, int blockSize, int rootDirSize) {
-    	return new NullFS(hdd, 256, blockSize, rootDirSize);
+    	return new NullFS(hdd, blockSize, rootDirSize, new NullFSOptions());
+    }
+
+    /**
+     * Destructively initialise a disk with filesystem meta-data ready for use
+     * @param hdd Target disk
+     * @param blockSize Bytes per block
+     * @param rootDirSize Bytes/Blocks reserved for root directory
+     * @param options buffer cache and other optional settings
+     * @return A new filesystem instance now written to that disk
+     */
+    public static Filesystem format(HDD hdd, int blockSize, int rootDirSize, NullFSOptions options) {
+    	return new NullFS(hdd, blockSize, rootDirSize, options);
+    }
+
+    /**
+     * Open a disk formatted earlier, completing any operation the journal
+     * holds that had not reached its place on disk
+     * @param hdd Formatted disk
+     * @return The filesystem on that disk
+     */
+    public static Filesystem mount(HDD hdd) {
+    	return new NullFS(hdd, new NullFSOptions());
+    }
+
+    /**
+     * Open a disk formatted earlier, completing any operation the journal
+     * holds that had not reached its place on disk
+     * @param hdd Formatted disk
+     * @param options buffer cache settings; the journal size is fixed at format
+     * @return The filesystem on that disk
+     */
+    public static Filesystem mount(HDD hdd, NullFSOptions options) {
+    	return new NullFS(hdd, options);
     }
 
     /**
@@ -46,49 +182,248 @@ public class NullFS implements Filesystem {
      * @param fatSize the maximum bytes one file can contain
      * @param blockSize the block size
      * @param rootDirSize the maximum number of file t
+     * @param options
      */
-    private NullFS(HDD disk, int fatSize, int blockSize, int rootDirSize) {
+    private NullFS(HDD disk, int blockSize, int rootDirSize, NullFSOptions options) {
         this.disk = disk;
-        this.fatSize = fatSize;
         this.blockSize = blockSize;
         this.rootDirectorySize = rootDirSize;
         
-        // erase data in blocks 0x00000000
-        this.eraseDiskData(0, this.disk.capacity());
+        if(blockSize < 2 * EXTENT_LEN)
+        	throw new RuntimeException("block size must be at least " + (2 * EXTENT_LEN) + " bytes");
         
         // the space for file data = total size - heads
-        int len4metadata = 4 + 4 + 4 + maxLen4Filename * 2 + this.fatSize * 4;
-        int freeBlockLinks = this.disk.capacity() / this.blockSize;
-        int bytes4blocks = this.disk.capacity() - 20 - freeBlockLinks - len4metadata * this.rootDirectorySize;
-        int numOfBlocks = bytes4blocks/this.blockSize;
+        int len4metadata = STORED_SIZE_OFFSET + 4;
+        int freeBlockLinks = BlockAllocator.bytesFor((int) Math.min(this.disk.capacity() / this.blockSize, BlockAllocator.MAX_BLOCKS));
+        int journalLength = options.getJournalBlocks() * this.blockSize;
+        if(journalLength != 0 && journalLength < MIN_JOURNAL)
+        	throw new RuntimeException("the journal must be disabled or hold at least " + MIN_JOURNAL + " bytes");
+        // less up to a block of padding that starts the data blocks on a block boundary
+        long bytes4blocks = this.disk.capacity() - Superblock.SIZE - journalLength - freeBlockLinks - (long) len4metadata * this.rootDirectorySize - (this.blockSize - 1);
+        // block numbers are 32 bits, space beyond the last one stays unused,
+        // and the dedup and checksum tables take their entries for each block from the same space
+        int entry = (options.isDedup() ? DedupIndex.ENTRY : 0) + (options.isChecksums() ? BlockChecksums.ENTRY : 0);
+        long inodeChecksums = options.isChecksums() ? BlockChecksums.bytesFor(0, this.rootDirectorySize) : 0;
+        int numOfBlocks = (int) Math.min((bytes4blocks - inodeChecksums) / (this.blockSize + entry), BlockAllocator.MAX_BLOCKS);
+        long dedupLength = options.isDedup() ? DedupIndex.bytesFor(numOfBlocks) : 0;
+        long checksumLength = options.isChecksums() ? BlockChecksums.bytesFor(numOfBlocks, this.rootDirectorySize) : 0;
+        bytes4blocks -= dedupLength + checksumLength;
         
         if(numOfBlocks <= 0)
         	throw new RuntimeException("please expand the disk space");
         
-        int used = this.disk.capacity() - bytes4blocks;
+        // erase data in blocks 0x00000000, or only the meta-data regions for a quick format
+        this.eraseDiskData(0, options.isQuickFormat() ? this.disk.capacity() - bytes4blocks : this.disk.capacity());
+        
+        long used = this.disk.capacity() - bytes4blocks;
         double percent = used / this.disk.capacity() * 100;
 
         
         // print format information
         System.out.println("Format information:");
-        System.out.println("free space for file data (size * number): " + this.blockSize * numOfBlocks);
-        System.out.println("bytes for block recorder: " + freeBlockLinks);
-        System.out.println("bytes for file inode: " + len4metadata * this.rootDirectorySize);
+        System.out.println("free space for file data (size * number): " + (long) this.blockSize * numOfBlocks);
+        System.out.println("bytes for journal: " + journalLength);
+        System.out.println("bytes for block bitmap: " + freeBlockLinks);
+        if(dedupLength > 0)
+        	System.out.println("bytes for dedup table: " + dedupLength);
+        if(checksumLength > 0)
+        	System.out.println("bytes for checksum table: " + checksumLength);
+        System.out.println("bytes for file inode: " + (long) len4metadata * this.rootDirectorySize);
         System.out.println("bytes for block data: " + bytes4blocks);
         System.out.println("disk space usage: " + (this.disk.capacity() - bytes4blocks) + " / " + this.disk.capacity() + " = " + percent + "%");
         
+        this.open(options, Superblock.SIZE, journalLength);
+        this.journal.clear();
+        
         // write basic information on disk
-        this.saveBytesFromInt(freeBlockLinks, 0); // block links length
-        this.saveBytesFromInt(numOfBlocks, freeBlockLinks + 4); // total number of blocks
-        this.saveBytesFromInt(0, freeBlockLinks + 8); // used number of blocks
-        this.saveBytesFromInt(0, freeBlockLinks + 12); // number of files
-        this.saveBytesFromInt(len4metadata, freeBlockLinks + 16); // size of metadata
+        long tx = this.journal.begin();
+        try{
+        	this.superblock = Superblock.create(this.journal, freeBlockLinks, numOfBlocks, len4metadata, this.blockSize, this.rootDirectorySize, journalLength, this.disk.capacity(), dedupLength, checksumLength);
+        	this.superblock.writeBack();
+        	
+        	this.allocator = new BlockAllocator(this.journal, this.superblock.bitmapStart(), numOfBlocks);
+        	this.allocator.format();
+        	this.journal.setSpill(this.allocator, this.superblock.dataStart(), this.blockSize);
+        	if(dedupLength > 0)
+        		this.dedup = new DedupIndex(this.journal, this.superblock.dedupStart(), numOfBlocks);
+        	if(checksumLength > 0)
+        		this.checksums = new BlockChecksums(this.journal, this.superblock.checksumStart(), this.blockSize, numOfBlocks, this.rootDirectorySize);
+        }finally{
+        	this.journal.end();
+        }
+        this.journal.commit(tx);
+        this.directory = new DirectoryIndex(this.rootDirectorySize);
+        this.inline = this.superblock.getVersion() >= Superblock.INLINE_VERSION;
+        this.compressible = this.superblock.getVersion() >= Superblock.COMPRESSION_VERSION;
+        this.compress = this.compressible && options.isCompression();
+        
+        this.pinMetadata(options);
+        this.metrics = new NullFSMetrics(options.isMetrics(), disk, options.getDiskModel(), this.queue, this.allocator, this.cache, this.journal);
+        this.startDiscard();
+    }
+    
+    /**
+     * Open a formatted disk: check and load the superblock, replay the
+     * journal, load the bitmap, and index the root directory from the
+     * inode table. Only meta-data is read, so the time taken depends on the
+     * number of blocks and inodes rather than the size of the disk.
+     * 
+     * @param disk
+     * @param options
+     */
+    private NullFS(HDD disk, NullFSOptions options) {
+        this.disk = disk;
+        Superblock header = Superblock.load(disk);
+        header.check(disk.capacity());
+        this.blockSize = header.getBlockSize();
+        this.rootDirectorySize = header.getRootDirSize();
+        if(this.blockSize < 2 * EXTENT_LEN)
+        	throw new RuntimeException("no NullFS found on this disk");
+        
+        this.open(options, header.journalStart(), header.getJournalLength());
+        this.journal.replay();
+        
+        this.superblock = Superblock.load(this.journal);
+        this.allocator = new BlockAllocator(this.journal, this.superblock.bitmapStart(), this.superblock.getTotalBlocks());
+        this.journal.setSpill(this.allocator, this.superblock.dataStart(), this.blockSize);
+        if(this.superblock.getDedupLength() > 0)
+        	this.dedup = new DedupIndex(this.journal, this.superblock.dedupStart(), this.superblock.getTotalBlocks());
+        if(this.superblock.getChecksumLength() > 0)
+        	this.checksums = new BlockChecksums(this.journal, this.superblock.checksumStart(), this.blockSize, this.superblock.getTotalBlocks(), this.rootDirectorySize);
+        this.directory = new DirectoryIndex(this.rootDirectorySize);
+        this.indexDirectory();
+        this.inline = this.superblock.getVersion() >= Superblock.INLINE_VERSION;
+        this.compressible = this.superblock.getVersion() >= Superblock.COMPRESSION_VERSION;
+        this.compress = this.compressible && options.isCompression();
+        
+        this.pinMetadata(options);
+        this.metrics = new NullFSMetrics(options.isMetrics(), disk, options.getDiskModel(), this.queue, this.allocator, this.cache, this.journal);
+        this.startDiscard();
+    }
+    
+    /**
+     * Set up what format and mount share: the slot locks, the request queue
+     * and buffer cache when enabled, and the journal on top of them
+     * 
+     * @param options
+     * @param journalStart
+     * @param journalLength
+     */
+    private void open(NullFSOptions options, long journalStart, int journalLength){
+        for(int i = 0; i < SLOT_LOCK_STRIPES; i++)
+        	this.slotLocks[i] = new ReentrantReadWriteLock();
         
+        // writes are queued and reordered on their way to the disk when a scheduler is set
+        if(options.getScheduler() != null){
+        	this.queue = new QueuedHDD(this.disk, options.getScheduler(), options.getQueueDepth());
+        	this.disk = this.queue;
+        }
         
+        // all further I/O goes through the buffer cache when enabled
+        if(options.getCacheBlocks() > 0){
+        	this.cache = new BufferCache(this.disk, this.blockSize, options.getCacheBlocks());
+        	this.disk = this.cache;
+        }
+        this.journal = new Journal(this.disk, journalStart, journalLength);
+        this.deleteMode = options.getDeleteMode();
+    }
+    
+    /**
+     * Fill the directory index from the inode table, read in chunks of
+     * INDEX_CHUNK bytes. A table of several chunks is read by a thread per
+     * processor, each chunk added to the index as soon as it is parsed.
+     */
+    private void indexDirectory(){
+        final int perChunk = Math.max(1, INDEX_CHUNK / this.superblock.getMetadataLength());
+        int chunks = (this.rootDirectorySize + perChunk - 1) / perChunk;
+        int threads = Math.min(chunks, Runtime.getRuntime().availableProcessors());
+        if(threads <= 1){
+        	for(int c = 0; c < chunks; c++)
+        		this.indexInodes(c * perChunk, Math.min(perChunk, this.rootDirectorySize - c * perChunk));
+        	return;
+        }
         
-        // ONLY for test
-        //this.writeFileContent2Disk(new int[]{1,5}, "hello my name is shenyang hello my name is shenyang hello my name is shenyang".getBytes());
-        //System.out.println(this.getFileContentByBlocks(new int[]{1,5}, "hello my name is shenyang hello my name is shenyang hello my name is shenyang".getBytes().length));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try{
+        	List<Future<Void>> done = new ArrayList<Future<Void>>(chunks);
+        	for(int c = 0; c < chunks; c++){
+        		final int first = c * perChunk;
+        		done.add(pool.submit(new Callable<Void>(){
+        			@Override
+        			public Void call(){
+        				indexInodes(first, Math.min(perChunk, rootDirectorySize - first));
+        				return null;
+        			}
+        		}));
+        	}
+        	for(Future<Void> f : done)
+        		f.get();
+        }catch(ExecutionException e){
+        	throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }catch(InterruptedException e){
+        	Thread.currentThread().interrupt();
+        	throw new RuntimeException("interrupted while mounting", e);
+        }finally{
+        	pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Add the files in count slots from first to the directory index, with
+     * one read of their inodes
+     * 
+     * @param first
+     * @param count
+     */
+    private void indexInodes(int first, int count){
+        int len = this.superblock.getMetadataLength();
+        byte[] table = new byte[count * len];
+        this.journal.read(this.superblock.inodeLocation(first), table, 0, table.length);
+        for(int i = 0; i < count; i++){
+        	int index = toInt(table, i * len);
+        	if(index != 0)
+        		this.directory.add(first + i, index, new String(table, i * len + 12, toInt(table, i * len + 8), StandardCharsets.UTF_8));
+        }
+    }
+    
+    private void startDiscard(){
+        if(this.deleteMode == NullFSOptions.DeleteMode.DISCARD)
+        	this.discardWorker = DiscardWorker.start(this.allocator, this.disk, this.superblock);
+    }
+    
+    private void pinMetadata(NullFSOptions options){
+        // superblock and bitmap first, then as many inodes as the cache allows
+        if(this.cache != null && options.isPinMetadata())
+        	this.cache.pin(0, this.superblock.dataStart());
+    }
+    
+    /**
+     * The buffer cache between this filesystem and its disk
+     * 
+     * @return the cache, or null when caching is disabled
+     */
+    public BufferCache getBufferCache(){
+    	return this.cache;
+    }
+    
+    /**
+     * The queue reordering writes before they reach the disk
+     * 
+     * @return the queue, or null when no scheduler is set
+     */
+    public QueuedHDD getRequestQueue(){
+    	return this.queue;
+    }
+    
+    /**
+     * Operation counts and latencies, disk transfers and allocator cost,
+     * see NullFSOptions.setMetrics
+     * 
+     * @return the metrics; latencies and transfers stay at zero unless
+     * enabled
+     */
+    public NullFSMetrics getMetrics(){
+    	return this.metrics;
     }
 
     @Override
@@ -98,396 +433,2004 @@ public class NullFS implements Filesystem {
 
     @Override
     public void deleteFile(int index) {
+    	this.deleteFile(index, this.deleteMode == NullFSOptions.DeleteMode.SECURE);
+    }
+
+    @Override
+    public void eraseFile(int index) {
+    	this.deleteFile(index, true);
+    }
+    
+    private void deleteFile(int index, boolean secure) {
     	
-    	int freeBlockLinks = this.getIntValueFromDisk(0);
-    	int usedBlockNum = this.getIntValueFromDisk(freeBlockLinks + 8);
-    	//int fileNum = this.getIntValueFromDisk(freeBlockLinks + 12);
-    	int metadataLen = this.getIntValueFromDisk(freeBlockLinks + 16);
-    	int metaDataStart = 20 + freeBlockLinks; // start for inode list
-    	// search in inode list for index
-    	for(int i = 0; i < this.rootDirectorySize; i++){
-    		metaDataStart += metadataLen * i;
-    		if(this.getIntValueFromDisk(metaDataStart)==0)
-				continue;
-    		int fileIndex = this.getIntValueFromDisk(metaDataStart);
-    		if(fileIndex == index){
-    			// get its blocks
-    			int fileSize = this.getIntValueFromDisk(metaDataStart + 4);
-    			int blockNum = fileSize / this.blockSize;
-    			if(fileSize % this.blockSize != 0) blockNum++;
-    			int[] blocks = new int[blockNum];
-    			for(int j = 0; j < blockNum; j++){
-    				blocks[j] = this.getIntValueFromDisk(metaDataStart + 12 + this.maxLen4Filename * 2 + j*4);
-    			}
-    			
-    			// erase its block data, write 0x00000000
-    			byte[] nuc = new byte[fileSize];    			
-    			this.writeFileContent2Disk(blocks, nuc);
-    			
-    			// erase the free links
-    			for(int j = 0; j < blocks.length; ++j){
-    				this.disk.seek(4 + blocks[j]);
-    				this.disk.write((byte) 0x00000000);
-    			}
-    			
-    			// erase the inode
-    			this.eraseDiskData(metaDataStart, metaDataStart + metadataLen);
-    			
-    			// update disk head
-    			//fileNum--;
-    			usedBlockNum -= blocks.length;
-    			this.saveBytesFromInt(usedBlockNum, freeBlockLinks + 8); // update used blocks
-    	    	//this.saveBytesFromInt(fileNum, freeBlockLinks + 12); // increase file number
-    			
+    	List<Extent> released = new ArrayList<Extent>();
+    	long start = this.metrics.start();
+    	long tx = this.journal.begin();
+    	try{
+    		this.removeLocked(this.lockSlot(index, true), released);
+    		this.writeBackCounters();
+    	}finally{
+    		this.journal.end();
+    	}
+    	this.journal.commit(tx);
+    	this.release(released, secure);
+    	this.metrics.end(NullFSMetrics.Operation.DELETE, start);
+    }
+
+    @Override
+    public FragmentationReport fragmentationReport() {
+    	
+    	FragmentationReport report = new FragmentationReport();
+    	for(int i = this.directory.nextUsedSlot(0); i >= 0; i = this.directory.nextUsedSlot(i + 1)){
+    		this.slotLock(i, false).lock();
+    		try{
+    			MetaData md = this.readMetaData(this.superblock.inodeLocation(i));
+    			if(md != null)
+    				report.addFile(md.getIndex(), md.getExtentCount());
+    		}finally{
+    			this.slotLock(i, false).unlock();
+    		}
+    	}
+    	this.allocator.countFreeRuns(report);
+    	return report;
+    }
+
+    /**
+     * Operations wait from the start of the scrub to its end, so that it
+     * sees no operation half done; the work is split over a ForkJoinPool
+     * with a thread per processor, see Scrubber.
+     */
+    @Override
+    public ScrubReport scrub() {
+    	
+    	long start = System.nanoTime();
+    	this.journal.pause();
+    	try{
+    		ForkJoinPool pool = new ForkJoinPool();
+    		try{
+    			ScrubReport report = new Scrubber(this, this.journal, this.superblock, this.checksums, this.allocator.snapshot()).run(pool);
+    			report.setNanos(System.nanoTime() - start);
+    			return report;
+    		}finally{
+    			pool.shutdown();
+    		}
+    	}finally{
+    		this.journal.resume();
+    	}
+    }
+
+    /**
+     * Calls are serialized on the filesystem object, each carrying on the
+     * same pass over the directory.
+     */
+    @Override
+    public synchronized boolean defragment(long millis) {
+    	
+    	long deadline = System.nanoTime() + millis * 1000000L;
+    	if(this.defragClean >= this.rootDirectorySize)
+    		this.defragClean = 0; // start a new pass
+    	while(this.defragClean < this.rootDirectorySize){
+    		int slot = this.defragSlot;
+    		this.defragSlot = (slot + 1) % this.rootDirectorySize;
+    		if(this.moveFile(slot)){
+    			this.defragClean = 0;
+    		}else{
+    			this.defragClean++;
+    		}
+    		if(System.nanoTime() >= deadline)
     			break;
+    	}
+    	return this.defragClean >= this.rootDirectorySize;
+    }
+    
+    /**
+     * Move the file in a slot into one contiguous run if it is stored in
+     * several, or into a hole nearer the start of the disk if it is
+     * contiguous already, which packs the files together and leaves the
+     * free space in long runs. The move is one transaction: the data is
+     * copied first, then the inode switched to the new run and the old
+     * blocks released, so after a crash the file has either its old or its
+     * new layout.
+     * 
+     * @param slot
+     * @return false if the slot is empty or there is no better place for
+     * the file
+     */
+    private boolean moveFile(int slot){
+    	
+    	if(this.directory.nextUsedSlot(slot) != slot)
+    		return false;
+    	List<Extent> released = new ArrayList<Extent>();
+    	boolean moved = false;
+    	long tx = this.journal.begin();
+    	try{
+    		this.slotLock(slot, true).lock();
+    		try{
+    			MetaData md = this.readMetaData(this.superblock.inodeLocation(slot));
+    			if(md != null && md.getExtentCount() > 0)
+    				moved = this.relocate(md, released);
+    		}finally{
+    			this.slotLock(slot, true).unlock();
+    		}
+    	}finally{
+    		this.journal.end();
+    	}
+    	this.journal.commit(tx);
+    	this.release(released, this.deleteMode == NullFSOptions.DeleteMode.SECURE);
+    	return moved;
+    }
+    
+    /**
+     * Copy a file's data into a newly allocated run and point its inode
+     * there. The caller holds the slot's lock exclusively.
+     * 
+     * @param md
+     * @param released see releaseData
+     * @return false, with nothing changed, if no suitable free run is long
+     * enough
+     */
+    private boolean relocate(MetaData md, List<Extent> released){
+    	
+    	this.loadExtents(md);
+    	if(this.dedup != null && this.dedup.isShared(md.getExtents()))
+    		return false; // the other files using the blocks would still point to the old ones
+    	int count = md.getBlockCount();
+    	int before = md.getExtentCount() == 1 ? md.getExtents().get(0).getStart() : Integer.MAX_VALUE;
+    	int run = this.allocator.allocateRun(count, before);
+    	if(run < 0)
+    		return false;
+    	
+    	byte[] buffer = new byte[Math.min(count, MOVE_BLOCKS) * this.blockSize];
+    	int to = run;
+    	for(Extent e : md.getExtents()){
+    		for(int b = e.getStart(); b < e.getEnd();){
+    			int n = Math.min(e.getEnd() - b, MOVE_BLOCKS);
+    			this.disk.read(this.superblock.blockLocation(b), buffer, 0, n * this.blockSize);
+    			this.disk.write(this.superblock.blockLocation(to), buffer, 0, n * this.blockSize);
+    			b += n;
+    			to += n;
     		}
     	}
+    	
+    	List<Extent> old = md.getExtents();
+    	List<Integer> pointers = md.getPointerBlocks();
+    	if(this.dedup != null)
+    		this.dedup.move(old, run);
+    	if(this.checksums != null)
+    		this.checksums.copy(old, run);
+    	List<Extent> extents = new ArrayList<Extent>();
+    	extents.add(new Extent(run, count));
+    	md.setExtents(extents);
+    	md.setPointerBlocks(new ArrayList<Integer>());
+    	this.writeMetaData(md);
+    	
+    	this.releaseData(old, released);
+    	for(int b : pointers){
+    		this.freePointerBlock(b, released);
+    	}
+    	this.writeBackCounters();
+    	return true;
     }
 
     @Override
     public void dumpContents() {
-        
-    	int freeBlockLinks = this.getIntValueFromDisk(0);
-    	//int totalBlockNum = this.getIntValueFromDisk(freeBlockLinks + 4);
-    	//int usedBlockNum = this.getIntValueFromDisk(freeBlockLinks + 8);
-    	int fileNum = this.getIntValueFromDisk(freeBlockLinks + 12);
-    	int metadataLen = this.getIntValueFromDisk(freeBlockLinks + 16);	  	
     	
-    	if(fileNum <= 0){
+    	if(this.superblock.getFileCount() <= 0){
     		System.out.println("no file saved yet!");
     	}else{
-    		//System.out.println("file number: " + fileNum);
-    		int metaDataStart = 20 + freeBlockLinks; // start for inode list
-    		
-    		// find files in inode list
-    		for(int i = 0; i < this.rootDirectorySize; i++){
-    			metaDataStart += metadataLen * i;
-    			//System.out.println("newfile: " + metaDataStart);
-    			if(this.getIntValueFromDisk(metaDataStart) > fileNum)
-    				continue;
-    			int fileIndex = this.getIntValueFromDisk(metaDataStart);
-    			int fileSize = this.getIntValueFromDisk(metaDataStart + 4);
-    			int fileNameLen = this.getIntValueFromDisk(metaDataStart + 8);
-    			
-    			// filename
-    			//System.out.println(fileNameLen);
-    			byte[] fileNameArray = new byte[fileNameLen];
-    			for(int j = 0; j < fileNameLen; j++){
-    				this.disk.seek(j + metaDataStart + 12);
-    				fileNameArray[j] = this.disk.read();
+    		// find files in inode list, skipping free slots
+    		for(int i = this.directory.nextUsedSlot(0); i >= 0; i = this.directory.nextUsedSlot(i + 1)){
+    			MetaData md;
+    			String content;
+    			this.slotLock(i, false).lock();
+    			try{
+    				md = this.readMetaData(this.superblock.inodeLocation(i));
+    				if(md == null)
+    					continue; // deleted meanwhile
+    				this.loadExtents(md);
+    				
+    				// obtain content
+    				if(md.getStoredSize() > 0){
+    					byte[] b = new byte[md.getSize()];
+    					this.readCompressed(md, 0, b, 0, b.length);
+    					content = new String(b);
+    				}else{
+    					content = md.getInlineData() != null ? new String(md.getInlineData()) : this.getFileContentByExtents(md.getExtents(), md.getSize());
+    				}
+    			}finally{
+    				this.slotLock(i, false).unlock();
     			}
     			
-    			String fileName = new String(fileNameArray);
-    			
-    			// blocks
-    			int blockNum = fileSize / this.blockSize;
-    			if(fileSize % this.blockSize != 0) blockNum++;
-    			int[] blocks = new int[blockNum];
     			String bs = "";
-    			for(int j = 0; j < blockNum; j++){
-    				blocks[j] = this.getIntValueFromDisk(metaDataStart + 12 + this.maxLen4Filename * 2 + j*4);
-    				bs += blocks[j] + ",";
+    			for(Extent e : md.getExtents()){
+    				bs += e + ",";
     			}
     			
-    			// obtain content
-    			String content = this.getFileContentByBlocks(blocks, fileSize);
-    			
-    			System.out.println("Store file, index: " + fileIndex + ", file name: " + fileName + ", content: " + content + ", blocks: " + bs);
+    			System.out.println("Store file, index: " + md.getIndex() + ", file name: " + md.getFileName() + ", content: " + content + ", blocks: " + bs);
     		}
     		
-    		int total = this.getIntValueFromDisk(freeBlockLinks + 4);
-    		int used = this.getIntValueFromDisk(freeBlockLinks + 8);
-    		System.out.println("Usage (blocks): " + used + " / " + total);
+    		System.out.println("Usage (blocks): " + this.superblock.getUsedBlocks() + " / " + this.superblock.getTotalBlocks());
+    		if(this.dedup != null)
+    			System.out.println("Dedup: " + this.dedup.indexed() + " blocks indexed, " + this.dedup.hits() + " block writes saved");
+    		if(this.cache != null)
+    			System.out.println("Cache: " + this.cache);
+    		if(this.journal.isEnabled())
+    			System.out.println("Journal: " + this.journal.getOperations() + " operations in " + this.journal.getCommits() + " commits");
+    		if(this.metrics.isEnabled())
+    			System.out.println(this.metrics);
     		
     	}
-    	
+        
     }
 
     @Override
     public int newFile(String filename, byte[] contents) {
-        
-    	int freeBlockLinks = this.getIntValueFromDisk(0);
-    	int totalBlockNum = this.getIntValueFromDisk(freeBlockLinks + 4);
-    	int usedBlockNum = this.getIntValueFromDisk(freeBlockLinks + 8);
-    	int fileNum = this.getIntValueFromDisk(freeBlockLinks + 12);
-    	int metadataLen = this.getIntValueFromDisk(freeBlockLinks + 16);
     	
-    	if(fileNum + 1 > this.rootDirectorySize){
+    	BatchResult result = this.newFiles(Collections.singletonList(new FileSpec(filename, contents))).get(0);
+    	if(result.getStatus() == BatchResult.Status.NAME_TOO_LONG){
+    		System.out.println("too long file name for " + this.maxLen4Filename + " characters, " + NAME_BYTES + " bytes in UTF-8");
+    	}else if(!result.isOk()){
     		System.out.println("no more space for new file");
-    		return -1;
     	}
+    	return result.getIndex();
+    }
+
+    @Override
+    public List<BatchResult> newFiles(List<FileSpec> files) {
     	
-    	if(filename.length() > this.maxLen4Filename){
-    		System.out.println("too long file name for " + this.maxLen4Filename);
-    		return -1;
+    	List<Extent> released = new ArrayList<Extent>();
+    	long start = this.metrics.start();
+    	long tx = this.journal.begin();
+    	List<BatchResult> results;
+    	try{
+    		results = this.createFiles(files, released);
+    	}finally{
+    		this.journal.end();
     	}
+    	this.journal.commit(tx);
+    	this.release(released, false);
+    	this.metrics.end(NullFSMetrics.Operation.CREATE, start);
+    	return results;
+    }
+    
+    /**
+     * Create a batch of files: one pass over the directory claims their
+     * slots, one allocator pass finds their blocks, and the superblock is
+     * written back once at the end.
+     * 
+     * @param files
+     * @param released blocks of files that did not fit are added to it, see
+     * releaseData
+     * @return one result per file
+     */
+    private List<BatchResult> createFiles(List<FileSpec> files, List<Extent> released) {
     	
-    	int fileSize = contents.length;
-    	int fileNameLen = filename.getBytes().length;
-    	int blockNeeded = fileSize / this.blockSize;
-    	
-    	// calculate the blocks needed
-    	if(fileSize % this.blockSize != 0) blockNeeded++;
+    	int n = files.size();
+    	BatchResult[] results = new BatchResult[n];
     	
-    	if(blockNeeded > totalBlockNum - usedBlockNum){
-    		System.out.println("no more space for new file");
-    		return -1;
+    	int named = 0;
+    	for(int i = 0; i < n; i++){
+    		if(!this.fitsName(files.get(i).getName())){
+    			results[i] = BatchResult.failed(BatchResult.Status.NAME_TOO_LONG);
+    		}else{
+    			named++;
+    		}
     	}
     	
-    	// data blocks for this file
-    	int[] blocks = new int[blockNeeded];
-    	int bindex = 0;
-    	
-    	// search for free block in list
-    	int bound = totalBlockNum + 4 - 1;
-    	for(int i = 4; i < bound; ++i){
-    		this.disk.seek(i);
-    		if(this.disk.read() == 0x00000000){
-    			//System.out.println("find free link:" + (i - 4) + " for file " + fileNum);
-    			blocks[bindex++] = i - 4;
-    			this.disk.seek(i);
-    			this.disk.write((byte) 0x11111111);
-    			usedBlockNum++;
-    			
-    			if(bindex >= blockNeeded)
-    				break;
+    	// find free inodes
+    	int[] claimed = this.directory.claimSlots(named);
+    	int[] slots = new int[n];
+    	int[] blockNeeded = new int[n];
+    	byte[][] data = new byte[n][]; // what goes to each file's blocks: its contents, or their compressed form
+    	for(int i = 0, c = 0; i < n; i++){
+    		blockNeeded[i] = -1;
+    		if(results[i] != null)
+    			continue;
+    		if(c == claimed.length){
+    			results[i] = BatchResult.failed(BatchResult.Status.DIRECTORY_FULL);
+    			continue;
     		}
+    		slots[i] = claimed[c++];
+    		byte[] contents = files.get(i).getContents();
+    		data[i] = this.fitsInline(contents.length) ? contents : this.storedForm(contents);
+    		blockNeeded[i] = this.fitsInline(contents.length) ? 0 : (data[i].length + this.blockSize - 1) / this.blockSize;
     	}
     	
+    	// data extents for all of the files, each preferring one contiguous run;
+    	// with deduplication each file is stored in turn, sharing the blocks of those before it
+    	List<List<Extent>> extents = this.dedup == null ? this.allocator.allocateEach(blockNeeded) : this.storeEach(data, blockNeeded, released);
     	
-    	// update disk information
-    	fileNum++;
-    	this.saveBytesFromInt(usedBlockNum, freeBlockLinks + 8); // update used blocks
-    	this.saveBytesFromInt(fileNum, freeBlockLinks + 12); // increase file number
-    	
-    	// write file metadata
-    	int metaDataStart = 20 + freeBlockLinks;
-    	int count = 0;
-    	while(count < this.rootDirectorySize){
-    		metaDataStart += metadataLen * count;
-    		count++;
-    		this.disk.seek(metaDataStart);
-    		if(this.getIntValueFromDisk(metaDataStart) == 0){    			
-    			break;
+    	// indirect blocks for extents that do not fit in the inode
+    	List<List<Integer>> pointers = new ArrayList<List<Integer>>(n);
+    	int created = 0;
+    	for(int i = 0; i < n; i++){
+    		List<Integer> p = new ArrayList<Integer>();
+    		pointers.add(p);
+    		if(results[i] != null)
+    			continue;
+    		if(extents.get(i) == null || !this.growPointerBlocks(p, extents.get(i).size())){
+    			if(extents.get(i) != null)
+    				this.releaseData(extents.get(i), released);
+    			this.directory.release(slots[i]);
+    			results[i] = BatchResult.failed(BatchResult.Status.NO_SPACE);
+    			continue;
     		}
+    		created++;
     	}
     	
-    	// the metaDataStart for this file
-    	this.saveBytesFromInt(fileNum, metaDataStart);
-    	this.saveBytesFromInt(fileSize, metaDataStart + 4);
-    	this.saveBytesFromInt(fileNameLen, metaDataStart + 8);
-    	
-    	// file name
-    	byte[] fileNameBytes = filename.getBytes();
-    	int start = metaDataStart + 12;
-    	for(int i = 0; i < fileNameLen; ++i){
-    		this.disk.seek(start + i);
-    		this.disk.write(fileNameBytes[i]);
+    	// write data to disk, then the inode; a file is found once it is in the directory
+    	int fileNum = this.superblock.nextFileIndexes(created);
+    	for(int i = 0; i < n; i++){
+    		if(results[i] != null)
+    			continue;
+    		FileSpec file = files.get(i);
+    		if(this.dedup == null)
+    			this.writeFileContent2Disk(extents.get(i), data[i]);
+    		
+    		MetaData md = new MetaData();
+    		md.setIndex(fileNum);
+    		md.setFileName(file.getName());
+    		md.setSize(file.getContents().length);
+    		md.setExtents(extents.get(i));
+    		md.setPointerBlocks(pointers.get(i));
+    		md.setLocation(this.superblock.inodeLocation(slots[i]));
+    		md.setStoredSize(data[i] == file.getContents() ? 0 : data[i].length);
+    		if(this.fitsInline(file.getContents().length))
+    			md.setInlineData(file.getContents().clone());
+    		this.slotLock(slots[i], true).lock();
+    		try{
+    			this.writeMetaData(md);
+    			this.directory.add(slots[i], fileNum, file.getName());
+    		}finally{
+    			this.slotLock(slots[i], true).unlock();
+    		}
+    		results[i] = BatchResult.ok(fileNum++);
     	}
     	
-    	// block list for this file
-    	start = metaDataStart + 4 + 4 + 4 + maxLen4Filename * 2;
-    	for(int i = 0; i < blocks.length; ++i){
-    		this.saveBytesFromInt(blocks[i], start + 4 * i);
-    	}    	
-    	
-    	// write data to disk
-    	this.writeFileContent2Disk(blocks, contents);    	
-    	return fileNum;
+    	// update disk information
+    	this.writeBackCounters();
+    	return Arrays.asList(results);
     }
 
-    @Override
-    public void deleteFile(String filename) {
-    	
-    	int freeBlockLinks = this.getIntValueFromDisk(0);
-    	int usedBlockNum = this.getIntValueFromDisk(freeBlockLinks + 8);
-    	//int fileNum = this.getIntValueFromDisk(freeBlockLinks + 12);
-    	int metadataLen = this.getIntValueFromDisk(freeBlockLinks + 16);
-    	
-    	int metaDataStart = 20 + freeBlockLinks; // start for inode list
+    /**
+     * Store the contents of a batch of files one after another, see
+     * storeShared, so each file shares the blocks of those before it
+     * 
+     * @param data what goes to each file's blocks
+     * @param blockNeeded blocks of each file, negative to skip it
+     * @param released see storeShared
+     * @return each file's extents in file order, null for a file that was
+     * skipped or did not fit
+     */
+    private List<List<Extent>> storeEach(byte[][] data, int[] blockNeeded, List<Extent> released){
     	
-    	// search in inode list for index
-    	for(int i = 0; i < this.rootDirectorySize; i++){
-    		metaDataStart += metadataLen * i;
-    		if(this.getIntValueFromDisk(metaDataStart)==0)
-				continue;
-    		
-    		int fileNameLen = this.getIntValueFromDisk(metaDataStart + 8);
-    		
-    		// obtain the file name
-    		byte[] fileNameBytes = new byte[fileNameLen];
-    		for(int j = 0; j < fileNameLen; ++j){
-    			this.disk.seek(metaDataStart + 12 + j);
-    			fileNameBytes[j] = this.disk.read();
-    		}
-    		
-    		String fileName = new String(fileNameBytes);
-    		
-    		//int fileIndex = this.getIntValueFromDisk(metaDataStart);
-    		if(fileName.equalsIgnoreCase(filename)){
-    			// get its blocks
-    			int fileSize = this.getIntValueFromDisk(metaDataStart + 4);
-    			int blockNum = fileSize / this.blockSize;
-    			if(fileSize % this.blockSize != 0) blockNum++;
-    			int[] blocks = new int[blockNum];
-    			for(int j = 0; j < blockNum; j++){
-    				blocks[j] = this.getIntValueFromDisk(metaDataStart + 12 + this.maxLen4Filename * 2 + j*4);
-    			}
-    			
-    			// erase its block data, write 0x00000000
-    			byte[] nuc = new byte[fileSize];    			
-    			this.writeFileContent2Disk(blocks, nuc);
-    			
-    			// erase the free links
-    			for(int j = 0; j < blocks.length; ++j){
-    				this.disk.seek(4 + blocks[j]);
-    				this.disk.write((byte) 0x00000000);
-    			}
-    			
-    			// erase the inode
-    			this.eraseDiskData(metaDataStart, metaDataStart + metadataLen);
-    			
-    			// update disk head
-    			usedBlockNum -= blocks.length;
-    			//fileNum--;
-    			this.saveBytesFromInt(usedBlockNum, freeBlockLinks + 8); // update used blocks
-    	    	//this.saveBytesFromInt(fileNum, freeBlockLinks + 12); // increase file number
-    			
-    			break;
+    	List<List<Extent>> extents = new ArrayList<List<Extent>>(blockNeeded.length);
+    	for(int i = 0; i < blockNeeded.length; i++){
+    		if(blockNeeded[i] < 0){
+    			extents.add(null);
+    		}else if(blockNeeded[i] == 0){
+    			extents.add(new ArrayList<Extent>());
+    		}else{
+    			extents.add(this.storeShared(data[i], 0, data[i].length, released));
     		}
     	}
+    	return extents;
     }
     
-    
     /**
-     * Read stored value as integer from the disk.
-     * byte[start]byte[start+1]byte[start+2]byte[start+3]
+     * Write data starting at a block boundary to disk with deduplication:
+     * a whole block whose contents are already stored, elsewhere or earlier
+     * in the data, takes a reference to that block, and the rest are written
+     * to newly allocated blocks and indexed. A partly filled last block is
+     * never shared, so appending to it never changes another file.
      * 
-     * @param start
-     * @return
+     * @param src
+     * @param off
+     * @param len
+     * @param released blocks whose last reference is given back, their file
+     * having been deleted since share() took it, are added to it, see
+     * releaseData
+     * @return the blocks of the data in order, or null, with nothing
+     * changed, when the disk has no room
      */
-    public int getIntValueFromDisk(int start){
-    	disk.seek(start);
-    	int i = (disk.read() << 24) & 0xFF000000;  
-    	i |= (disk.read() << 16) & 0xFF0000;  
-    	i |= (disk.read() << 8) & 0xFF00;  
-    	i |= disk.read() & 0xFF;  
-    	return i;  
-
+    private List<Extent> storeShared(byte[] src, int off, int len, List<Extent> released){
+    	
+    	int count = (len + this.blockSize - 1) / this.blockSize;
+    	int[] blocks = new int[count];
+    	long[] hashes = new long[count];
+    	int[] copyOf = new int[count]; // an earlier block of the data with the same contents, or -1
+    	HashMap<Long, Integer> seen = new HashMap<Long, Integer>();
+    	int fresh = 0;
+    	for(int i = 0; i < count; i++){
+    		int at = off + i * this.blockSize;
+    		blocks[i] = NO_BLOCK;
+    		copyOf[i] = -1;
+    		if(len - i * this.blockSize >= this.blockSize){
+    			hashes[i] = DedupIndex.hash(src, at, this.blockSize);
+    			blocks[i] = this.dedup.share(hashes[i]);
+    			if(blocks[i] != NO_BLOCK && !this.holds(blocks[i], src, at)){
+    				// another block with the same hash: give the reference back, store this one untracked
+    				this.releaseData(Collections.singletonList(new Extent(blocks[i], 1)), released);
+    				blocks[i] = NO_BLOCK;
+    				hashes[i] = 0;
+    			}
+    			Integer earlier = seen.get(hashes[i]);
+    			if(blocks[i] == NO_BLOCK && earlier != null
+    					&& Arrays.equals(src, at, at + this.blockSize, src, off + earlier * this.blockSize, off + (earlier + 1) * this.blockSize)){
+    				copyOf[i] = earlier;
+    				continue;
+    			}
+    			if(blocks[i] == NO_BLOCK && hashes[i] != 0)
+    				seen.put(hashes[i], i);
+    		}
+    		if(blocks[i] == NO_BLOCK)
+    			fresh++;
+    	}
+    	
+    	List<Extent> allocated = this.allocator.allocateExtents(fresh);
+    	if(allocated == null){
+    		for(int i = 0; i < count; i++){
+    			if(blocks[i] != NO_BLOCK)
+    				this.releaseData(Collections.singletonList(new Extent(blocks[i], 1)), released);
+    		}
+    		return null;
+    	}
+    	
+    	// new blocks in allocation order, then the repeats of them
+    	boolean[] written = new boolean[count];
+    	Iterator<Extent> runs = allocated.iterator();
+    	Extent run = null;
+    	int taken = 0;
+    	for(int i = 0; i < count; i++){
+    		if(blocks[i] != NO_BLOCK || copyOf[i] >= 0)
+    			continue;
+    		if(run == null || taken == run.getLength()){
+    			run = runs.next();
+    			taken = 0;
+    		}
+    		blocks[i] = run.getStart() + taken++;
+    		written[i] = true;
+    		if(hashes[i] != 0)
+    			this.dedup.add(blocks[i], hashes[i]);
+    	}
+    	for(int i = 0; i < count; i++){
+    		if(copyOf[i] >= 0){
+    			blocks[i] = blocks[copyOf[i]];
+    			this.dedup.addReference(blocks[i]);
+    		}
+    	}
+    	
+    	// write the new blocks a run at a time
+    	for(int i = 0; i < count;){
+    		int j = i + 1;
+    		if(written[i]){
+    			while(j < count && written[j] && blocks[j] == blocks[j - 1] + 1)
+    				j++;
+    			int from = i * this.blockSize;
+    			int n = Math.min(len - from, (j - i) * this.blockSize);
+    			this.disk.write(this.superblock.blockLocation(blocks[i]), src, off + from, n);
+    			if(this.checksums != null)
+    				this.checksums.store(blocks[i], src, off + from, n);
+    		}
+    		i = j;
+    	}
+    	
+    	List<Extent> extents = new ArrayList<Extent>();
+    	for(int i = 0; i < count;){
+    		int j = i + 1;
+    		while(j < count && blocks[j] == blocks[j - 1] + 1)
+    			j++;
+    		extents.add(new Extent(blocks[i], j - i));
+    		i = j;
+    	}
+    	return extents;
     }
     
     /**
-     * Read stored value as character from the disk.
-     * byte[start]byte[start+1]
+     * Whether a data block holds the same bytes as src from off
      * 
-     * @param start
+     * @param block
+     * @param src
+     * @param off
      * @return
      */
-    public char getCharValueFromDisk(int start){
-    	disk.seek(start);
-    	char c = (char) ((disk.read() << 8) & 0xFF00L);  
-    	c |= (char) (disk.read() & 0xFFL);  
-    	return c;  
-
+    private boolean holds(int block, byte[] src, int off){
+    	byte[] b = new byte[this.blockSize];
+    	this.disk.read(this.superblock.blockLocation(block), b, 0, this.blockSize);
+    	return Arrays.equals(b, 0, this.blockSize, src, off, off + this.blockSize);
     }
     
     /**
-     * Parse a integer value into byte array for recording.
-     * Save to the disk.
+     * What a new file's blocks hold: its contents compressed, when
+     * compression is on and that takes fewer blocks, or else the contents
+     * as they are
      * 
-     * @param value
-     * @return
+     * @param contents
+     * @return contents itself when stored as is
      */
-    public void saveBytesFromInt(int i, int start){   	
-    	// save to disk
-    	disk.seek(start);
-    	disk.write((byte) (i >>> 24));
-    	disk.write((byte) (i >>> 16));
-    	disk.write((byte) (i >>> 8));
-    	disk.write((byte) i);
+    private byte[] storedForm(byte[] contents){
+    	if(!this.compress || contents.length == 0)
+    		return contents;
+    	byte[] encoded = ChunkCodec.encode(new int[0], 0, contents, 0, contents.length);
+    	return this.pays(encoded.length, contents.length) ? encoded : contents;
     }
     
     /**
-     * Obtain file content by its blocks / only characters is permitted in file
+     * Whether stored bytes take fewer blocks than size bytes as they are
      * 
-     * @param blocks the block list
-     * @param size the file size
+     * @param stored
+     * @param size
      * @return
      */
-    public String getFileContentByBlocks(int[] blocks, int size){
-    	
-    	int freeBlockLinks = this.getIntValueFromDisk(0);
-    	int metadataLen = this.getIntValueFromDisk(freeBlockLinks + 16);
-    	int dataBlockBegin = 20 + freeBlockLinks + metadataLen * this.rootDirectorySize;
-    	
-    	//StringBuffer sb = new StringBuffer();  
-    	byte[] sb = new byte[size];
-    	int index = 0;
-    	
-    	for(int i = 0; i < blocks.length; ++i){
-    		int start = dataBlockBegin + blocks[i] * this.blockSize; // blocks begins with 0,1,2,3,4...
-    		int pivot = 0;
-    		int bound = this.blockSize;
-    		if(size < this.blockSize) bound = size;
-    		while(pivot < bound){  			
-    			this.disk.seek(start + pivot);
-    			//System.out.println("read from:" + (start+pivot));
-    			sb[index++] = this.disk.read();
-    			pivot += 1;
+    private boolean pays(int stored, int size){
+    	return (stored + this.blockSize - 1) / this.blockSize < (size + this.blockSize - 1) / this.blockSize;
+    }
+
+    @Override
+    public boolean append(int index, byte[] contents) {
+    	List<Extent> released = new ArrayList<Extent>();
+    	long start = this.metrics.start();
+    	long tx = this.journal.begin();
+    	boolean appended = false;
+    	try{
+    		int slot = this.lockSlot(index, true);
+    		if(slot >= 0){
+    			try{
+    				appended = this.extendFile(this.metaDataOf(slot), contents, 0, contents.length, released);
+    			}finally{
+    				this.unlockSlot(slot, true);
+    			}
     		}
-    		size = size - this.blockSize;
+    	}finally{
+    		this.journal.end();
     	}
-    	
-    	return new String(sb);
+    	this.journal.commit(tx);
+    	this.release(released, this.deleteMode == NullFSOptions.DeleteMode.SECURE);
+    	this.metrics.end(NullFSMetrics.Operation.APPEND, start);
+    	return appended;
     }
-    
-    /**
-     * Write content to blocks specified
-     * 
-     * @param blocks
-     * @param content
-     */
-    public void writeFileContent2Disk(int[] blocks, byte[] content){
-    	
-    	int freeBlockLinks = this.getIntValueFromDisk(0);
-    	int metadataLen = this.getIntValueFromDisk(freeBlockLinks + 16);
-    	
-    	//System.out.println("content len:" + content.length);
-    	int dataBlockBegin = 20 + freeBlockLinks + metadataLen * this.rootDirectorySize;
-    	
-    	int size = content.length;
-    	
-    	for(int i = 0; i < blocks.length; ++i){
-    		int start = dataBlockBegin + blocks[i] * this.blockSize;
-    		
-    		//System.out.println("start at:" + start);
-    		
-    		int pivot = 0;
-    		int bound = this.blockSize;
-    		if(size < this.blockSize) bound = size;
-    		while(pivot < bound){
-    			this.disk.seek(start + pivot);
-    			//System.out.println("write at:" + (start+pivot));
-    			//System.out.println("write index:" + (content.length - size + pivot));
-    			this.disk.write(content[content.length - size + pivot]);
-    			pivot++;
-    		}   		
-    		
-    		size = size - this.blockSize;
+
+    @Override
+    public boolean append(String filename, byte[] contents) {
+    	List<Extent> released = new ArrayList<Extent>();
+    	long start = this.metrics.start();
+    	long tx = this.journal.begin();
+    	boolean appended = false;
+    	try{
+    		int slot = this.lockSlot(filename, true);
+    		if(slot >= 0){
+    			try{
+    				appended = this.extendFile(this.metaDataOf(slot), contents, 0, contents.length, released);
+    			}finally{
+    				this.unlockSlot(slot, true);
+    			}
+    		}
+    	}finally{
+    		this.journal.end();
     	}
+    	this.journal.commit(tx);
+    	this.release(released, this.deleteMode == NullFSOptions.DeleteMode.SECURE);
+    	this.metrics.end(NullFSMetrics.Operation.APPEND, start);
+    	return appended;
     }
-    
+
+    @Override
+    public InputStream openInputStream(int index) {
+    	MetaData md = this.lockedMetaData(this.lockSlot(index, false));
+    	return md == null ? null : new NullFSInputStream(this, md, this.readAhead(md));
+    }
+
+    @Override
+    public InputStream openInputStream(String filename) {
+    	MetaData md = this.lockedMetaData(this.lockSlot(filename, false));
+    	return md == null ? null : new NullFSInputStream(this, md, this.readAhead(md));
+    }
+
     /**
-     * Erase disks with 0x00000000
+     * Bytes an input stream reads at a time: READ_AHEAD_BLOCKS, or a whole
+     * chunk of a compressed file so that each chunk is inflated once
      * 
-     * @param start
-     * @param end
+     * @param md
+     * @return
      */
-    public void eraseDiskData(int start, int end){
-    	for(int i = start; i < end; ++i){
-    		this.disk.seek(i);
-    		this.disk.write((byte) 0x00000000);
-    	}
+    private int readAhead(MetaData md){
+    	return Math.max(READ_AHEAD_BLOCKS * this.blockSize, md.getStoredSize() > 0 ? ChunkCodec.CHUNK : 0);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filename) {
+    	int index = this.newFile(filename, new byte[0]);
+    	if(index < 0)
+    		return null;
+    	return this.openAppendStream(index);
+    }
+
+    @Override
+    public OutputStream openAppendStream(int index) {
+    	MetaData md = this.lockedMetaData(this.lockSlot(index, false));
+    	return md == null ? null : new NullFSOutputStream(this, md, WRITE_BEHIND_BLOCKS * this.blockSize);
+    }
+
+    @Override
+    public void sync() {
+    	long tx = this.journal.begin();
+    	try{
+    		this.writeBackCounters();
+    	}finally{
+    		this.journal.end();
+    	}
+    	this.journal.commit(tx);
+    	this.disk.force();
+    }
+
+    @Override
+    public void unmount() {
+    	if(this.discardWorker != null){
+    		this.allocator.stopDiscard();
+    		boolean interrupted = false;
+    		while(true){
+    			try{
+    				this.discardWorker.join();
+    				break;
+    			}catch(InterruptedException e){
+    				interrupted = true;
+    			}
+    		}
+    		this.discardWorker = null;
+    		if(interrupted)
+    			Thread.currentThread().interrupt();
+    	}
+    	this.sync();
+    }
+
+    @Override
+    public int fileSize(int index) {
+    	MetaData md = this.lockedMetaData(this.lockSlot(index, false));
+    	return md == null ? -1 : md.getSize();
+    }
+
+    @Override
+    public int fileSize(String filename) {
+    	MetaData md = this.lockedMetaData(this.lockSlot(filename, false));
+    	return md == null ? -1 : md.getSize();
+    }
+
+    @Override
+    public int readFile(int index, byte[] dst, int off) {
+    	checkOffset(dst, off);
+    	int slot = this.lockSlot(index, false);
+    	if(slot < 0)
+    		return -1;
+    	try{
+    		return this.readFile(this.metaDataOf(slot), dst, off);
+    	}finally{
+    		this.unlockSlot(slot, false);
+    	}
+    }
+
+    @Override
+    public int readFile(String filename, byte[] dst, int off) {
+    	checkOffset(dst, off);
+    	int slot = this.lockSlot(filename, false);
+    	if(slot < 0)
+    		return -1;
+    	try{
+    		return this.readFile(this.metaDataOf(slot), dst, off);
+    	}finally{
+    		this.unlockSlot(slot, false);
+    	}
+    }
+
+    @Override
+    public byte[] readFile(String filename) {
+    	int slot = this.lockSlot(filename, false);
+    	if(slot < 0)
+    		return null;
+    	try{
+    		MetaData md = this.metaDataOf(slot);
+    		if(md == null)
+    			return null;
+    		byte[] contents = new byte[md.getSize()];
+    		this.readFile(md, contents, 0);
+    		return contents;
+    	}finally{
+    		this.unlockSlot(slot, false);
+    	}
+    }
+
+    @Override
+    public int readFile(int index, ByteBuffer dst) {
+    	int slot = this.lockSlot(index, false);
+    	if(slot < 0)
+    		return -1;
+    	try{
+    		return this.readFile(this.metaDataOf(slot), dst);
+    	}finally{
+    		this.unlockSlot(slot, false);
+    	}
+    }
+
+    @Override
+    public int readFile(String filename, ByteBuffer dst) {
+    	int slot = this.lockSlot(filename, false);
+    	if(slot < 0)
+    		return -1;
+    	try{
+    		return this.readFile(this.metaDataOf(slot), dst);
+    	}finally{
+    		this.unlockSlot(slot, false);
+    	}
+    }
+
+    @Override
+    public ByteBuffer mapFile(int index) {
+    	return this.mapFile(this.lockedMetaData(this.lockSlot(index, false)));
+    }
+
+    @Override
+    public ByteBuffer mapFile(String filename) {
+    	return this.mapFile(this.lockedMetaData(this.lockSlot(filename, false)));
+    }
+
+    @Override
+    public void deleteFile(String filename) {
+    	this.deleteFile(filename, this.deleteMode == NullFSOptions.DeleteMode.SECURE);
+    }
+
+    @Override
+    public void eraseFile(String filename) {
+    	this.deleteFile(filename, true);
+    }
+    
+    private void deleteFile(String filename, boolean secure) {
+    	
+    	List<Extent> released = new ArrayList<Extent>();
+    	long start = this.metrics.start();
+    	long tx = this.journal.begin();
+    	try{
+    		this.removeLocked(this.lockSlot(filename, true), released);
+    		this.writeBackCounters();
+    	}finally{
+    		this.journal.end();
+    	}
+    	this.journal.commit(tx);
+    	this.release(released, secure);
+    	this.metrics.end(NullFSMetrics.Operation.DELETE, start);
+    }
+    
+    @Override
+    public List<BatchResult> deleteFiles(Collection<String> filenames) {
+    	
+    	List<BatchResult> results = new ArrayList<BatchResult>(filenames.size());
+    	List<Extent> released = new ArrayList<Extent>();
+    	long start = this.metrics.start();
+    	long tx = this.journal.begin();
+    	try{
+    		for(String filename : filenames){
+    			results.add(this.removeLocked(this.lockSlot(filename, true), released));
+    		}
+    		this.writeBackCounters();
+    	}finally{
+    		this.journal.end();
+    	}
+    	this.journal.commit(tx);
+    	this.release(released, this.deleteMode == NullFSOptions.DeleteMode.SECURE);
+    	this.metrics.end(NullFSMetrics.Operation.DELETE, start);
+    	return results;
+    }
+
+    @Override
+    public List<BatchResult> deleteFilesByIndex(Collection<Integer> indexes) {
+    	
+    	List<BatchResult> results = new ArrayList<BatchResult>(indexes.size());
+    	List<Extent> released = new ArrayList<Extent>();
+    	long start = this.metrics.start();
+    	long tx = this.journal.begin();
+    	try{
+    		for(int index : indexes){
+    			results.add(this.removeLocked(this.lockSlot(index, true), released));
+    		}
+    		this.writeBackCounters();
+    	}finally{
+    		this.journal.end();
+    	}
+    	this.journal.commit(tx);
+    	this.release(released, this.deleteMode == NullFSOptions.DeleteMode.SECURE);
+    	this.metrics.end(NullFSMetrics.Operation.DELETE, start);
+    	return results;
+    }
+    
+    /**
+     * Remove the file in a slot locked exclusively by the caller, and
+     * release the lock. The superblock is left for the caller to write back.
+     * 
+     * @param slot
+     * @param released see releaseData
+     * @return the index of the file removed, or NOT_FOUND if slot is negative
+     */
+    private BatchResult removeLocked(int slot, List<Extent> released){
+    	if(slot < 0)
+    		return BatchResult.failed(BatchResult.Status.NOT_FOUND);
+    	try{
+    		return BatchResult.ok(this.removeFile(slot, released));
+    	}finally{
+    		this.unlockSlot(slot, true);
+    	}
+    }
+    
+    /**
+     * Lock the slot holding a file. The slot is looked up again once the
+     * lock is held, in case the file was deleted or its slot reused while
+     * waiting.
+     * 
+     * @param index
+     * @param write exclusive rather than shared
+     * @return the locked slot, or -1 (nothing locked) if there is no such file
+     */
+    private int lockSlot(int index, boolean write){
+    	long start = this.metrics.start();
+    	try{
+    		while(true){
+    			int slot = this.directory.slotOf(index);
+    			if(slot < 0)
+    				return -1;
+    			this.slotLock(slot, write).lock();
+    			if(this.directory.slotOf(index) == slot)
+    				return slot;
+    			this.slotLock(slot, write).unlock();
+    		}
+    	}finally{
+    		this.metrics.end(NullFSMetrics.Operation.LOOKUP, start);
+    	}
+    }
+    
+    /**
+     * Lock the slot holding the first file called filename, see lockSlot(int, boolean)
+     * 
+     * @param filename
+     * @param write
+     * @return
+     */
+    private int lockSlot(String filename, boolean write){
+    	long start = this.metrics.start();
+    	try{
+    		while(true){
+    			int slot = this.directory.slotOf(filename);
+    			if(slot < 0)
+    				return -1;
+    			this.slotLock(slot, write).lock();
+    			if(this.directory.slotOf(filename) == slot)
+    				return slot;
+    			this.slotLock(slot, write).unlock();
+    		}
+    	}finally{
+    		this.metrics.end(NullFSMetrics.Operation.LOOKUP, start);
+    	}
+    }
+    
+    private void unlockSlot(int slot, boolean write){
+    	this.slotLock(slot, write).unlock();
+    }
+    
+    private Lock slotLock(int slot, boolean write){
+    	ReentrantReadWriteLock lock = this.slotLocks[slot % SLOT_LOCK_STRIPES];
+    	return write ? lock.writeLock() : lock.readLock();
+    }
+    
+    /**
+     * Read the inode in a slot locked shared by the caller, and release the lock
+     * 
+     * @param slot
+     * @return the inode, or null if slot is negative (not found)
+     */
+    private MetaData lockedMetaData(int slot){
+    	if(slot < 0)
+    		return null;
+    	try{
+    		return this.metaDataOf(slot);
+    	}finally{
+    		this.unlockSlot(slot, false);
+    	}
+    }
+    
+    /**
+     * Record the allocator's block count in the superblock and write it back.
+     * The count is taken under the superblock's lock, so whichever thread
+     * writes last stores the latest count.
+     */
+    private void writeBackCounters(){
+    	synchronized(this.superblock){
+    		this.superblock.setUsedBlocks(this.allocator.usedBlocks());
+    		this.superblock.writeBack();
+    	}
+    }
+    
+    /**
+     * Read from a file for an input stream opened on it earlier
+     * 
+     * @param md the inode as it was when the stream was opened
+     * @param position
+     * @param dst
+     * @param off
+     * @param len
+     * @return false if the file has been deleted since
+     */
+    boolean read(MetaData md, int position, byte[] dst, int off, int len){
+    	int slot = this.lockSlot(md.getIndex(), false);
+    	if(slot < 0)
+    		return false;
+    	try{
+    		long start = this.metrics.start();
+    		this.readContent(this.metaDataOf(slot), position, dst, off, len);
+    		this.metrics.end(NullFSMetrics.Operation.READ, start);
+    		return true;
+    	}finally{
+    		this.unlockSlot(slot, false);
+    	}
+    }
+    
+    /**
+     * Append to a file for an output stream. The inode is read again under
+     * the lock, as other writers may have extended the file since the stream
+     * was opened.
+     * 
+     * @param md the inode as it was when the stream was opened
+     * @param src
+     * @param off
+     * @param len
+     * @return false if the file has been deleted or the disk has no room
+     */
+    boolean append(MetaData md, byte[] src, int off, int len){
+    	List<Extent> released = new ArrayList<Extent>();
+    	long start = this.metrics.start();
+    	long tx = this.journal.begin();
+    	boolean appended = false;
+    	try{
+    		int slot = this.lockSlot(md.getIndex(), true);
+    		if(slot >= 0){
+    			try{
+    				appended = this.extendFile(this.metaDataOf(slot), src, off, len, released);
+    			}finally{
+    				this.unlockSlot(slot, true);
+    			}
+    		}
+    	}finally{
+    		this.journal.end();
+    	}
+    	this.journal.commit(tx);
+    	this.release(released, this.deleteMode == NullFSOptions.DeleteMode.SECURE);
+    	this.metrics.end(NullFSMetrics.Operation.APPEND, start);
+    	return appended;
+    }
+    
+    /**
+     * Erase the file in an inode slot and give its blocks back to the
+     * allocator. The caller holds the slot's lock exclusively and writes
+     * back the superblock. The data blocks are not touched here: the caller
+     * zeroes them, or queues them for the discard worker, once the delete
+     * has committed (see release).
+     * 
+     * @param slot
+     * @param released see releaseData
+     * @return the index of the file removed
+     */
+    private int removeFile(int slot, List<Extent> released){
+    	
+    	MetaData md = this.readMetaData(this.superblock.inodeLocation(slot));
+    	this.loadExtents(md);
+    	
+    	// release the blocks in the bitmap
+    	this.releaseData(md.getExtents(), released);
+    	for(int b : md.getPointerBlocks()){
+    		this.freePointerBlock(b, released);
+    	}
+        
+    	// erase the inode
+    	this.journal.fill(md.getLocation(), this.superblock.getMetadataLength(), (byte) 0x00000000);
+    	this.directory.remove(slot);
+    	return md.getIndex();
+    }
+    
+    /**
+     * Give data blocks a file no longer uses back to the allocator. The
+     * bitmap the operation commits shows them free, but they are held until
+     * release(): allocated again before the commit, they would have another
+     * file's data written over them in place while the committed inodes
+     * still point to them.
+     * 
+     * @param extents
+     * @param released the blocks are added to it, for release()
+     */
+    private void releaseData(List<Extent> extents, List<Extent> released){
+    	if(this.dedup != null)
+    		extents = this.dedup.release(extents); // blocks other files still use stay
+    	this.allocator.hold(extents);
+    	released.addAll(extents);
+    }
+    
+    /**
+     * Let the allocator reuse the blocks a committed operation held back:
+     * zeroed and forced to disk first when secure, after the discard worker
+     * has zeroed them in DISCARD mode, at once otherwise. Before the commit
+     * they still hold the data of the files as they were, which a crash
+     * goes back to.
+     * 
+     * @param extents the blocks
+     * @param secure zero them before returning, whatever the delete mode
+     */
+    private void release(List<Extent> extents, boolean secure){
+    	if(extents.isEmpty())
+    		return;
+    	if(secure){
+    		this.eraseExtents(extents);
+    		this.disk.force();
+    		this.allocator.release(extents);
+    	}else if(this.deleteMode == NullFSOptions.DeleteMode.DISCARD){
+    		this.allocator.discard(extents);
+    	}else{
+    		this.allocator.release(extents);
+    	}
+    }
+    
+    /**
+     * Inode held in a root directory slot, the caller holding its lock
+     * 
+     * @param slot
+     * @return the inode, or null if slot is negative (not found)
+     */
+    private MetaData metaDataOf(int slot){
+    	if(slot < 0)
+    		return null;
+    	return this.readMetaData(this.superblock.inodeLocation(slot));
+    }
+    
+    /**
+     * Whether a file may have this name: at most maxLen4Filename characters,
+     * which in UTF-8 also fit the inode's name field
+     * 
+     * @param name
+     * @return
+     */
+    private boolean fitsName(String name){
+    	return name.length() <= this.maxLen4Filename && name.getBytes(StandardCharsets.UTF_8).length <= NAME_BYTES;
+    }
+    
+    /**
+     * @throws IndexOutOfBoundsException unless off lies within dst, or just
+     * past its end
+     */
+    private static void checkOffset(byte[] dst, int off){
+    	if(off < 0 || off > dst.length)
+    		throw new IndexOutOfBoundsException("offset " + off + " outside an array of " + dst.length + " bytes");
+    }
+    
+    private int readFile(MetaData md, byte[] dst, int off){
+    	if(md == null)
+    		return -1;
+    	long start = this.metrics.start();
+    	int len = Math.min(md.getSize(), dst.length - off);
+    	this.readContent(md, 0, dst, off, len);
+    	this.metrics.end(NullFSMetrics.Operation.READ, start);
+    	return len;
+    }
+    
+    private int readFile(MetaData md, ByteBuffer dst){
+    	if(md == null)
+    		return -1;
+    	long start = this.metrics.start();
+    	int len = Math.min(md.getSize(), dst.remaining());
+    	this.readContent(md, 0, dst, len);
+    	this.metrics.end(NullFSMetrics.Operation.READ, start);
+    	return len;
+    }
+    
+    private ByteBuffer mapFile(MetaData md){
+    	if(md == null)
+    		return null;
+    	if(md.getSize() == 0)
+    		return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    	if(md.getInlineData() != null)
+    		return ByteBuffer.wrap(md.getInlineData()).asReadOnlyBuffer();
+    	if(md.getExtentCount() != 1 || md.getStoredSize() > 0)
+    		return null;
+    	int first = md.getExtents().get(0).getStart();
+    	ByteBuffer view = this.disk.view(this.superblock.blockLocation(first), md.getSize());
+    	if(view != null && this.checksums != null)
+    		this.checksums.verify(first, view);
+    	return view;
+    }
+    
+    /**
+     * Append len bytes from src to a file: the free tail of its last block is
+     * filled first, then new blocks are allocated, extending the last extent
+     * in place where the following blocks are free. A file kept inline stays
+     * so while it fits, and otherwise moves to blocks with the new bytes.
+     * A compressed file, or one with no blocks yet when compression is on,
+     * has its last chunk encoded again with the new bytes, see
+     * rewriteStored. The caller holds the file's slot lock exclusively.
+     * 
+     * @param md the file's inode, updated in place
+     * @param src
+     * @param off
+     * @param len
+     * @param released blocks a compressed file no longer uses are added to
+     * it, see releaseData
+     * @return false, with nothing changed, when the disk has no room
+     */
+    private boolean extendFile(MetaData md, byte[] src, int off, int len, List<Extent> released){
+    	
+    	byte[] inlined = md.getInlineData();
+    	if(md.getExtentCount() == 0 && this.fitsInline(md.getSize() + len)){
+    		byte[] data = inlined == null ? new byte[len] : Arrays.copyOf(inlined, inlined.length + len);
+    		System.arraycopy(src, off, data, md.getSize(), len);
+    		md.setInlineData(data);
+    		md.setSize(data.length);
+    		this.writeMetaData(md);
+    		return true;
+    	}
+    	if(md.getStoredSize() > 0 || (this.compress && md.getExtentCount() == 0)){
+    		// the bytes of a partly filled last chunk, then the new ones
+    		int keep = md.getSize() / ChunkCodec.CHUNK;
+    		int[] ends = this.chunkEnds(md);
+    		byte[] data = new byte[md.getSize() - keep * ChunkCodec.CHUNK + len];
+    		this.readContent(md, keep * ChunkCodec.CHUNK, data, 0, data.length - len);
+    		System.arraycopy(src, off, data, data.length - len, len);
+    		byte[] encoded = ChunkCodec.encode(ends, keep, data, 0, data.length);
+    		if(md.getStoredSize() > 0 || this.pays(encoded.length, md.getSize() + len))
+    			return this.rewriteStored(md, keep == 0 ? 0 : ends[keep - 1], encoded, md.getSize() + len, released);
+    	}
+    	if(inlined != null){
+    		// too big to stay inline: the old bytes go to the new blocks first
+    		byte[] data = Arrays.copyOf(inlined, inlined.length + len);
+    		System.arraycopy(src, off, data, inlined.length, len);
+    		src = data;
+    		off = 0;
+    		len = data.length;
+    	}
+    	
+    	this.loadExtents(md);
+    	List<Extent> extents = md.getExtents();
+    	int size = inlined == null ? md.getSize() : 0;
+    	int tail = size % this.blockSize == 0 ? 0 : Math.min(len, this.blockSize - size % this.blockSize);
+    	int blockNeeded = (len - tail + this.blockSize - 1) / this.blockSize;
+    	
+    	// the checksum of the last block covers its old bytes too, checked before anything changes
+    	byte[] lastBytes = null;
+    	if(tail > 0 && this.checksums != null){
+    		lastBytes = new byte[size % this.blockSize + tail];
+    		this.readStored(md, size - size % this.blockSize, lastBytes, 0, size % this.blockSize);
+    		System.arraycopy(src, off, lastBytes, size % this.blockSize, tail);
+    	}
+    	
+    	// new blocks, continuing the last extent where possible, or with
+    	// deduplication sharing those already stored and writing the rest
+    	List<Extent> added = new ArrayList<Extent>();
+    	int grown = 0;
+    	if(this.dedup != null){
+    		added = this.storeShared(src, off + tail, len - tail, released);
+    		if(added == null)
+    			return false;
+    	}else{
+    		if(blockNeeded > this.allocator.freeBlocks())
+    			return false;
+    		if(blockNeeded > 0 && !extents.isEmpty()){
+    			grown = this.allocator.allocateAt(extents.get(extents.size() - 1).getEnd(), blockNeeded);
+    		}
+    		List<Extent> allocated = this.allocator.allocateExtents(blockNeeded - grown);
+    		if(allocated == null){
+    			if(grown > 0)
+    				this.allocator.free(extents.get(extents.size() - 1).getEnd(), grown);
+    			return false;
+    		}
+    		added.addAll(allocated);
+    	}
+    	
+    	List<Extent> newExtents = new ArrayList<Extent>(extents);
+    	if(grown > 0){
+    		Extent last = newExtents.remove(newExtents.size() - 1);
+    		newExtents.add(new Extent(last.getStart(), last.getLength() + grown));
+    		added.add(0, new Extent(last.getEnd(), grown));
+    	}
+    	newExtents.addAll(added.subList(grown > 0 ? 1 : 0, added.size()));
+    	
+    	List<Integer> pointers = new ArrayList<Integer>(md.getPointerBlocks());
+    	if(!this.growPointerBlocks(pointers, newExtents.size())){
+    		this.releaseData(added, released);
+    		return false;
+    	}
+    	
+    	// the tail of the last block, then the new blocks unless storeShared wrote them
+    	if(tail > 0){
+    		this.disk.write(this.superblock.blockLocation(this.lastBlock(extents)) + size % this.blockSize, src, off, tail);
+    		if(lastBytes != null)
+    			this.checksums.store(this.lastBlock(extents), lastBytes, 0, lastBytes.length);
+    	}
+    	if(this.dedup == null){
+    		int index = off + tail;
+    		for(Extent e : added){
+    			int n = Math.min(e.getLength() * this.blockSize, off + len - index);
+    			this.disk.write(this.superblock.blockLocation(e.getStart()), src, index, n);
+    			if(this.checksums != null)
+    				this.checksums.store(e.getStart(), src, index, n);
+    			index += n;
+    		}
+    	}
+    	
+    	md.setExtents(newExtents);
+    	md.setPointerBlocks(pointers);
+    	md.setSize(size + len);
+    	md.setInlineData(null);
+    	this.writeMetaData(md);
+    	this.writeBackCounters();
+    	return true;
+    }
+    
+    private int lastBlock(List<Extent> extents){
+    	return extents.get(extents.size() - 1).getEnd() - 1;
+    }
+    
+    /**
+     * Where each chunk of a compressed file ends in its stored form
+     * 
+     * @param md
+     * @return the ends, none for a file stored as it is
+     */
+    private int[] chunkEnds(MetaData md){
+    	if(md.getStoredSize() == 0)
+    		return new int[0];
+    	int count = ChunkCodec.chunks(md.getSize());
+    	byte[] table = new byte[count * 4];
+    	this.readStored(md, md.getStoredSize() - table.length, table, 0, table.length);
+    	return ChunkCodec.ends(table, count);
+    }
+    
+    /**
+     * Replace the bytes a file's blocks hold from stored position from on.
+     * The blocks from the one holding that position are copied on write:
+     * the bytes before it in that block and the new ones go to newly
+     * allocated (or, with deduplication, shared) blocks, the inode is
+     * switched to them and the old ones are released, so a block another
+     * file shares is never changed. The caller holds the file's slot lock
+     * exclusively.
+     * 
+     * @param md the file's inode, updated in place
+     * @param from
+     * @param bytes
+     * @param size the file size afterwards
+     * @param released see releaseData
+     * @return false, with nothing changed, when the disk has no room
+     */
+    private boolean rewriteStored(MetaData md, int from, byte[] bytes, int size, List<Extent> released){
+    	
+    	this.loadExtents(md);
+    	int first = from / this.blockSize;
+    	int head = from % this.blockSize;
+    	byte[] data = new byte[head + bytes.length];
+    	this.readStored(md, first * this.blockSize, data, 0, head);
+    	System.arraycopy(bytes, 0, data, head, bytes.length);
+    	
+    	// the extents before block first stay, the rest are replaced
+    	List<Extent> kept = new ArrayList<Extent>();
+    	List<Extent> old = new ArrayList<Extent>();
+    	int base = 0;
+    	for(Extent e : md.getExtents()){
+    		int split = Math.max(0, Math.min(e.getLength(), first - base));
+    		if(split > 0)
+    			kept.add(new Extent(e.getStart(), split));
+    		if(split < e.getLength())
+    			old.add(new Extent(e.getStart() + split, e.getLength() - split));
+    		base += e.getLength();
+    	}
+    	
+    	List<Extent> added;
+    	if(this.dedup != null){
+    		added = this.storeShared(data, 0, data.length, released);
+    	}else{
+    		added = this.allocator.allocateExtents((data.length + this.blockSize - 1) / this.blockSize);
+    	}
+    	if(added == null)
+    		return false;
+    	List<Extent> newExtents = new ArrayList<Extent>(kept);
+    	newExtents.addAll(added);
+    	
+    	// pointer blocks for the new extent count, the surplus freed once the inode no longer needs them
+    	List<Integer> pointers = new ArrayList<Integer>(md.getPointerBlocks());
+    	if(!this.growPointerBlocks(pointers, newExtents.size())){
+    		this.releaseData(added, released);
+    		return false;
+    	}
+    	int needed = this.pointerBlocksFor(newExtents.size());
+    	List<Integer> surplus = new ArrayList<Integer>(pointers.subList(needed, pointers.size()));
+    	pointers = new ArrayList<Integer>(pointers.subList(0, needed));
+    	
+    	if(this.dedup == null)
+    		this.writeFileContent2Disk(added, data);
+    	md.setExtents(newExtents);
+    	md.setPointerBlocks(pointers);
+    	md.setSize(size);
+    	md.setStoredSize(from + bytes.length);
+    	md.setInlineData(null);
+    	this.writeMetaData(md);
+    	
+    	this.releaseData(old, released);
+    	for(int b : surplus){
+    		this.freePointerBlock(b, released);
+    	}
+    	this.writeBackCounters();
+    	return true;
+    }
+    
+    /**
+     * Whether a file of size bytes is kept in its inode
+     * 
+     * @param size
+     * @return
+     */
+    private boolean fitsInline(int size){
+    	return this.inline && size > 0 && size <= INLINE_MAX;
+    }
+    
+    /**
+     * Allocate indirect blocks until there are enough for extentCount extents
+     * 
+     * @param pointers the file's pointer blocks, added to in place
+     * @param extentCount
+     * @return false, with the blocks added by this call released again, when
+     * the disk is full or the file would need more extents than a
+     * double-indirect block can reach
+     */
+    private boolean growPointerBlocks(List<Integer> pointers, int extentCount){
+    	int had = pointers.size();
+    	int needed = this.pointerBlocksFor(extentCount);
+    	if(needed < 0)
+    		return false;
+    	while(pointers.size() < needed){
+    		int block = this.allocator.allocateBlock();
+    		if(block == NO_BLOCK){
+    			while(pointers.size() > had){
+    				this.allocator.free(pointers.remove(pointers.size() - 1), 1); // allocated by this call, never written
+    			}
+    			return false;
+    		}
+    		pointers.add(block);
+    	}
+    	return true;
+    }
+    
+    /**
+     * Number of pointer blocks needed to hold extentCount extents: the
+     * indirect block, then the double-indirect block and the indirect blocks
+     * below it
+     * 
+     * @param extentCount
+     * @return the count, or -1 if extentCount is more than can be addressed
+     */
+    private int pointerBlocksFor(int extentCount){
+    	int perBlock = this.blockSize / EXTENT_LEN;
+    	int rest = extentCount - DIRECT_EXTENTS;
+    	if(rest <= 0)
+    		return 0;
+    	if(rest <= perBlock)
+    		return 1;
+    	int leaves = (rest - perBlock + perBlock - 1) / perBlock;
+    	return leaves > perBlock ? -1 : 2 + leaves;
+    }
+    
+    /**
+     * Give a pointer block back to the allocator, held until the operation
+     * has committed, see releaseData
+     * 
+     * @param block
+     * @param released
+     */
+    private void freePointerBlock(int block, List<Extent> released){
+    	synchronized(this.pointerCache){
+    		this.pointerCache.remove(block);
+    	}
+    	List<Extent> extent = Collections.singletonList(new Extent(block, 1));
+    	this.allocator.hold(extent);
+    	released.addAll(extent);
+    }
+    
+    /**
+     * Read a pointer block, from memory when it was used recently
+     * 
+     * @param block
+     * @return the raw block, not to be modified
+     */
+    private byte[] readPointerBlock(int block){
+    	byte[] data;
+    	synchronized(this.pointerCache){
+    		data = this.pointerCache.get(block);
+    	}
+    	if(data == null){
+    		data = new byte[this.blockSize];
+    		this.journal.read(this.superblock.blockLocation(block), data, 0, this.blockSize);
+    		if(this.checksums != null)
+    			this.checksums.verify(block, data, 0, this.blockSize);
+    		this.cachePointerBlock(block, data);
+    	}
+    	return data;
+    }
+    
+    /**
+     * Write a pointer block, skipping the transfer when it is unchanged, so
+     * appending to a large file only rewrites its last indirect blocks
+     * 
+     * @param block
+     * @param data
+     */
+    private void writePointerBlock(int block, byte[] data){
+    	byte[] cached;
+    	synchronized(this.pointerCache){
+    		cached = this.pointerCache.get(block);
+    	}
+    	if(Arrays.equals(data, cached))
+    		return;
+    	this.journal.write(this.superblock.blockLocation(block), data, 0, this.blockSize);
+    	if(this.checksums != null)
+    		this.checksums.store(block, data, 0, this.blockSize);
+    	this.cachePointerBlock(block, data);
+    }
+    
+    private void cachePointerBlock(int block, byte[] data){
+    	synchronized(this.pointerCache){
+    		this.pointerCache.put(block, data);
+    		if(this.pointerCache.size() > POINTER_CACHE_BLOCKS){
+    			Iterator<Integer> eldest = this.pointerCache.keySet().iterator();
+    			eldest.next();
+    			eldest.remove();
+    		}
+    	}
+    }
+    
+    /**
+     * Read the extents held in the file's indirect blocks, once, so that
+     * md.getExtents() lists all of them
+     * 
+     * @param md
+     */
+    void loadExtents(MetaData md){
+    	if(md.isLoaded())
+    		return;
+    	int count = md.getExtentCount();
+    	int perBlock = this.blockSize / EXTENT_LEN;
+    	List<Extent> extents = new ArrayList<Extent>(md.getExtents());
+    	List<Integer> pointers = new ArrayList<Integer>(md.getPointerBlocks());
+    	
+    	decodeExtents(this.readPointerBlock(md.getIndirectBlock()), Math.min(perBlock, count - extents.size()), extents);
+    	if(md.getDoubleIndirectBlock() != NO_BLOCK){
+    		byte[] dbl = this.readPointerBlock(md.getDoubleIndirectBlock());
+    		for(int i = 0; extents.size() < count; i++){
+    			int leaf = toInt(dbl, i * EXTENT_LEN);
+    			pointers.add(leaf);
+    			decodeExtents(this.readPointerBlock(leaf), Math.min(perBlock, count - extents.size()), extents);
+    		}
+    	}
+    	md.setExtents(extents);
+    	md.setPointerBlocks(pointers);
+    }
+    
+    private static void decodeExtents(byte[] block, int count, List<Extent> extents){
+    	for(int i = 0; i < count; i++){
+    		extents.add(new Extent(toInt(block, i * EXTENT_LEN), toInt(block, i * EXTENT_LEN + 4)));
+    	}
+    }
+    
+    /**
+     * Find the data block holding a block of the file. Costs at most two
+     * pointer block reads: the indirect block, or the double-indirect block
+     * and the one indirect block its binary search picks.
+     * 
+     * @param md
+     * @param fileBlock block number within the file
+     * @return the run of blocks from that one to the end of its extent, or
+     * null past the end of the file
+     */
+    private Extent locate(MetaData md, int fileBlock){
+    	int count = md.getExtentCount();
+    	int perBlock = this.blockSize / EXTENT_LEN;
+    	
+    	// direct extents, always in memory
+    	int base = 0;
+    	for(int i = 0; i < count && i < DIRECT_EXTENTS; i++){
+    		Extent e = md.getExtents().get(i);
+    		if(fileBlock < base + e.getLength())
+    			return runFrom(e, fileBlock - base);
+    		base += e.getLength();
+    	}
+    	if(count <= DIRECT_EXTENTS)
+    		return null;
+    	
+    	// the double-indirect block records where each of its indirect blocks begins
+    	int dblBlock = md.getDoubleIndirectBlock();
+    	byte[] dbl = dblBlock == NO_BLOCK ? null : this.readPointerBlock(dblBlock);
+    	if(dbl == null || fileBlock < toInt(dbl, 4)){
+    		Extent e = findRun(this.readPointerBlock(md.getIndirectBlock()), Math.min(perBlock, count - DIRECT_EXTENTS), base, fileBlock);
+    		if(e != null || dbl == null)
+    			return e;
+    	}
+    	
+    	int leaves = (count - DIRECT_EXTENTS - perBlock + perBlock - 1) / perBlock;
+    	int lo = 0, hi = leaves - 1;
+    	while(lo < hi){
+    		int mid = (lo + hi + 1) >>> 1;
+    		if(toInt(dbl, mid * EXTENT_LEN + 4) <= fileBlock)
+    			lo = mid;
+    		else
+    			hi = mid - 1;
+    	}
+    	int entries = Math.min(perBlock, count - DIRECT_EXTENTS - perBlock - lo * perBlock);
+    	return findRun(this.readPointerBlock(toInt(dbl, lo * EXTENT_LEN)), entries, toInt(dbl, lo * EXTENT_LEN + 4), fileBlock);
+    }
+    
+    private static Extent findRun(byte[] block, int count, int base, int fileBlock){
+    	for(int i = 0; i < count; i++){
+    		int length = toInt(block, i * EXTENT_LEN + 4);
+    		if(fileBlock < base + length)
+    			return runFrom(new Extent(toInt(block, i * EXTENT_LEN), length), fileBlock - base);
+    		base += length;
+    	}
+    	return null;
+    }
+    
+    private static Extent runFrom(Extent e, int skip){
+    	return new Extent(e.getStart() + skip, e.getLength() - skip);
+    }
+    
+    /**
+     * Read the inode at the given disk position. Only its direct extents are
+     * read, see loadExtents(MetaData) for the rest; an inline file's data
+     * comes with the inode.
+     * 
+     * @param location
+     * @return the inode, or null if the slot is free
+     * @throws ChecksumException if the disk keeps checksums and the inode
+     * does not match its own
+     */
+    public MetaData readMetaData(long location){
+    	
+    	byte[] inode = new byte[this.inodeLength()];
+    	this.journal.read(location, inode, 0, inode.length);
+    	return this.decodeMetaData(location, inode);
+    }
+    
+    /**
+     * Bytes of an inode that are read and written, those of the stored size
+     * only from superblock version 5 on
+     * 
+     * @return
+     */
+    int inodeLength(){
+    	return this.compressible ? STORED_SIZE_OFFSET + 4 : STORED_SIZE_OFFSET;
+    }
+    
+    /**
+     * Decode an inode read from disk, checking it against its checksum when
+     * the disk keeps them, see readMetaData
+     * 
+     * @param location
+     * @param inode inodeLength() bytes
+     * @return the inode, or null if the slot is free
+     */
+    MetaData decodeMetaData(long location, byte[] inode){
+    	
+    	int index = toInt(inode, 0);
+    	if(index == 0)
+    		return null;
+    	if(this.checksums != null)
+    		this.checksums.verifyInode(this.slotAt(location), inode);
+    	
+    	MetaData md = new MetaData();
+    	md.setLocation(location);
+    	md.setIndex(index);
+    	md.setSize(toInt(inode, 4));
+    	md.setFileName(new String(inode, 12, toInt(inode, 8), StandardCharsets.UTF_8));
+    	
+    	int extentCount = toInt(inode, EXTENT_COUNT_OFFSET);
+    	List<Extent> extents = new ArrayList<Extent>(extentCount);
+    	for(int i = 0; i < extentCount && i < DIRECT_EXTENTS; i++){
+    		int off = EXTENTS_OFFSET + i * EXTENT_LEN;
+    		extents.add(new Extent(toInt(inode, off), toInt(inode, off + 4)));
+    	}
+    	md.setExtents(extents);
+    	md.setExtentCount(extentCount);
+    	if(extentCount == 0 && md.getSize() > 0)
+    		md.setInlineData(Arrays.copyOfRange(inode, EXTENTS_OFFSET, EXTENTS_OFFSET + md.getSize()));
+    	if(this.compressible)
+    		md.setStoredSize(toInt(inode, STORED_SIZE_OFFSET));
+    	
+    	List<Integer> pointers = new ArrayList<Integer>();
+    	for(int off = INDIRECT_OFFSET; off <= DOUBLE_INDIRECT_OFFSET && toInt(inode, off) != NO_BLOCK; off += 4){
+    		pointers.add(toInt(inode, off));
+    	}
+    	md.setPointerBlocks(pointers);
+    	return md;
+    }
+    
+    /**
+     * Write an inode to md.getLocation(), spilling extents beyond the direct
+     * ones into the blocks of md.getPointerBlocks(), or holding the file's
+     * inline data in their place. The extents must be loaded. The inode is one transfer, and each changed pointer block one
+     * more.
+     * 
+     * @param md
+     */
+    public void writeMetaData(MetaData md){
+    	
+    	List<Extent> extents = md.getExtents();
+    	List<Integer> pointers = md.getPointerBlocks();
+    	byte[] fileNameBytes = md.getFileName().getBytes(StandardCharsets.UTF_8);
+    	if(fileNameBytes.length > NAME_BYTES)
+    		throw new IllegalArgumentException("file name " + md.getFileName() + " does not fit in an inode");
+    	
+    	byte[] inode = new byte[this.inodeLength()];
+    	putInt(inode, 0, md.getIndex());
+    	putInt(inode, 4, md.getSize());
+    	putInt(inode, 8, fileNameBytes.length);
+    	System.arraycopy(fileNameBytes, 0, inode, 12, fileNameBytes.length);
+    	putInt(inode, EXTENT_COUNT_OFFSET, extents.size());
+    	putInt(inode, INDIRECT_OFFSET, md.getIndirectBlock());
+    	putInt(inode, DOUBLE_INDIRECT_OFFSET, md.getDoubleIndirectBlock());
+    	for(int i = 0; i < extents.size() && i < DIRECT_EXTENTS; i++){
+    		putInt(inode, EXTENTS_OFFSET + i * EXTENT_LEN, extents.get(i).getStart());
+    		putInt(inode, EXTENTS_OFFSET + i * EXTENT_LEN + 4, extents.get(i).getLength());
+    	}
+    	if(md.getInlineData() != null)
+    		System.arraycopy(md.getInlineData(), 0, inode, EXTENTS_OFFSET, md.getInlineData().length);
+    	if(this.compressible)
+    		putInt(inode, STORED_SIZE_OFFSET, md.getStoredSize());
+    	this.journal.write(md.getLocation(), inode, 0, inode.length);
+    	if(this.checksums != null)
+    		this.checksums.storeInode(this.slotAt(md.getLocation()), inode);
+    	if(pointers.isEmpty())
+    		return;
+    	
+    	int perBlock = this.blockSize / EXTENT_LEN;
+    	int e = DIRECT_EXTENTS;
+    	int fileBlock = 0;
+    	for(int i = 0; i < DIRECT_EXTENTS; i++){
+    		fileBlock += extents.get(i).getLength();
+    	}
+    	byte[] dbl = new byte[this.blockSize];
+    	for(int i = 0; i < pointers.size(); i++){
+    		if(i == 1)
+    			continue; // the double-indirect block, written last
+    		if(i > 1){
+    			putInt(dbl, (i - 2) * EXTENT_LEN, pointers.get(i));
+    			putInt(dbl, (i - 2) * EXTENT_LEN + 4, fileBlock);
+    		}
+    		byte[] block = new byte[this.blockSize];
+    		for(int off = 0; off < perBlock * EXTENT_LEN && e < extents.size(); off += EXTENT_LEN, e++){
+    			putInt(block, off, extents.get(e).getStart());
+    			putInt(block, off + 4, extents.get(e).getLength());
+    			fileBlock += extents.get(e).getLength();
+    		}
+    		this.writePointerBlock(pointers.get(i), block);
+    	}
+    	if(pointers.size() > 1)
+    		this.writePointerBlock(pointers.get(1), dbl);
+    }
+    
+    /**
+     * Root directory slot of the inode at a disk position
+     * 
+     * @param location
+     * @return
+     */
+    private int slotAt(long location){
+    	return (int) ((location - this.superblock.inodeLocation(0)) / this.superblock.getMetadataLength());
+    }
+    
+    /**
+     * Read stored value as integer from the disk.
+     * byte[start]byte[start+1]byte[start+2]byte[start+3]
+     * 
+     * @param start
+     * @return
+     */
+    public int getIntValueFromDisk(long start){
+    	byte[] b = new byte[4];
+    	journal.read(start, b, 0, 4);
+    	return toInt(b, 0);
+    }
+    
+    /**
+     * Read count consecutive integers from the disk in a single transfer.
+     * 
+     * @param start
+     * @param count
+     * @return
+     */
+    public int[] getIntValuesFromDisk(long start, int count){
+    	byte[] b = new byte[count * 4];
+    	journal.read(start, b, 0, b.length);
+    	int[] values = new int[count];
+    	for(int i = 0; i < count; ++i){
+    		values[i] = toInt(b, i * 4);
+    	}
+    	return values;
+    }
+    
+    /**
+     * Read stored value as character from the disk.
+     * byte[start]byte[start+1]
+     * 
+     * @param start
+     * @return
+     */
+    public char getCharValueFromDisk(long start){
+    	byte[] b = new byte[2];
+    	journal.read(start, b, 0, 2);
+    	char c = (char) ((b[0] << 8) & 0xFF00L);  
+    	c |= (char) (b[1] & 0xFFL);  
+    	return c;  
+
+    }
+    
+    /**
+     * Parse a integer value into byte array for recording.
+     * Save to the disk.
+     * 
+     * @param value
+     * @return
+     */
+    public void saveBytesFromInt(int i, long start){
+    	byte[] b = new byte[4];
+    	putInt(b, 0, i);
+    	journal.write(start, b, 0, 4);
+    }
+    
+    /**
+     * Save consecutive integers to the disk in a single transfer.
+     * 
+     * @param values
+     * @param start
+     */
+    public void saveBytesFromInts(int[] values, long start){
+    	byte[] b = new byte[values.length * 4];
+    	for(int i = 0; i < values.length; ++i){
+    		putInt(b, i * 4, values[i]);
+    	}
+    	journal.write(start, b, 0, b.length);
+    }
+    
+    private static int toInt(byte[] b, int off){
+    	int i = (b[off] << 24) & 0xFF000000;  
+    	i |= (b[off + 1] << 16) & 0xFF0000;  
+    	i |= (b[off + 2] << 8) & 0xFF00;  
+    	i |= b[off + 3] & 0xFF;  
+    	return i;  
+    }
+    
+    private static void putInt(byte[] b, int off, int i){
+    	b[off] = (byte) (i >>> 24);
+    	b[off + 1] = (byte) (i >>> 16);
+    	b[off + 2] = (byte) (i >>> 8);
+    	b[off + 3] = (byte) i;
+    }
+    
+    /**
+     * Obtain file content by its extents / only characters is permitted in file
+     * 
+     * @param extents the extent list
+     * @param size the file size
+     * @return
+     */
+    public String getFileContentByExtents(List<Extent> extents, int size){
+    	byte[] sb = new byte[size];
+    	int position = 0;
+    	for(Extent e : extents){
+    		int n = Math.min(e.getLength() * this.blockSize, size - position);
+    		this.disk.read(this.superblock.blockLocation(e.getStart()), sb, position, n);
+    		if(this.checksums != null)
+    			this.checksums.verify(e.getStart(), sb, position, n);
+    		position += n;
+    	}
+    	return new String(sb);
+    }
+    
+    /**
+     * Read len bytes of file content, starting at byte position of the file,
+     * into dst[off..off+len). One transfer per extent touched, none for an
+     * inline file; a compressed file inflates the chunks touched, see
+     * readCompressed.
+     * 
+     * @param md the file's inode
+     * @param position offset in the file
+     * @param dst
+     * @param off
+     * @param len
+     */
+    public void readContent(MetaData md, int position, byte[] dst, int off, int len){
+    	if(md.getInlineData() != null){
+    		System.arraycopy(md.getInlineData(), position, dst, off, len);
+    		return;
+    	}
+    	if(md.getStoredSize() > 0){
+    		this.readCompressed(md, position, dst, off, len);
+    		return;
+    	}
+    	this.readStored(md, position, dst, off, len);
+    }
+    
+    /**
+     * Read len bytes held in a file's blocks, from byte position of them,
+     * into dst[off..off+len), one transfer per extent touched. When the disk
+     * keeps checksums, the blocks touched are read as far as the file
+     * reaches into them and checked, see readChecked.
+     * 
+     * @param md
+     * @param position
+     * @param dst
+     * @param off
+     * @param len
+     */
+    private void readStored(MetaData md, int position, byte[] dst, int off, int len){
+    	if(this.checksums != null){
+    		this.readChecked(md, position, dst, off, len);
+    		return;
+    	}
+    	while(len > 0){
+    		Extent run = this.locate(md, position / this.blockSize);
+    		int skip = position % this.blockSize;
+    		int n = Math.min(run.getLength() * this.blockSize - skip, len);
+    		this.disk.read(this.superblock.blockLocation(run.getStart()) + skip, dst, off, n);
+    		position += n;
+    		off += n;
+    		len -= n;
+    	}
+    }
+    
+    /**
+     * readStored on a disk that keeps checksums: each run of blocks touched
+     * is read whole, but for the part of the last block past the end of the
+     * file, with one transfer into a buffer, checked against the
+     * checksums, and the bytes asked for copied out
+     * 
+     * @param md
+     * @param position
+     * @param dst
+     * @param off
+     * @param len
+     * @throws ChecksumException if a block read does not match its checksum
+     */
+    private void readChecked(MetaData md, int position, byte[] dst, int off, int len){
+    	int stored = md.getStoredSize() > 0 ? md.getStoredSize() : md.getSize();
+    	while(len > 0){
+    		Extent run = this.locate(md, position / this.blockSize);
+    		int skip = position % this.blockSize;
+    		int n = Math.min(run.getLength() * this.blockSize - skip, len);
+    		int whole = Math.min((skip + n + this.blockSize - 1) / this.blockSize * this.blockSize, stored - (position - skip));
+    		byte[] blocks = new byte[whole];
+    		this.disk.read(this.superblock.blockLocation(run.getStart()), blocks, 0, whole);
+    		this.checksums.verify(run.getStart(), blocks, 0, whole);
+    		System.arraycopy(blocks, skip, dst, off, n);
+    		position += n;
+    		off += n;
+    		len -= n;
+    	}
+    }
+    
+    /**
+     * Read len bytes of file content, starting at byte position of the file,
+     * into dst, advancing its position. One transfer per extent touched,
+     * none for an inline file.
+     * 
+     * @param md the file's inode
+     * @param position offset in the file
+     * @param dst
+     * @param len
+     */
+    public void readContent(MetaData md, int position, ByteBuffer dst, int len){
+    	if(md.getInlineData() != null){
+    		dst.put(md.getInlineData(), position, len);
+    		return;
+    	}
+    	if(md.getStoredSize() > 0 || this.checksums != null){
+    		// inflated, or checked, on the heap first
+    		byte[] b = new byte[len];
+    		this.readContent(md, position, b, 0, len);
+    		dst.put(b);
+    		return;
+    	}
+    	int limit = dst.limit();
+    	while(len > 0){
+    		Extent run = this.locate(md, position / this.blockSize);
+    		int skip = position % this.blockSize;
+    		int n = Math.min(run.getLength() * this.blockSize - skip, len);
+    		dst.limit(dst.position() + n);
+    		this.disk.read(this.superblock.blockLocation(run.getStart()) + skip, dst);
+    		position += n;
+    		len -= n;
+    	}
+    	dst.limit(limit);
+    }
+    
+    /**
+     * Read len bytes of a compressed file, starting at byte position of the
+     * file, into dst[off..off+len): one transfer for the table entries of
+     * the chunks touched, one for the chunks, and only those chunks
+     * inflated
+     * 
+     * @param md
+     * @param position
+     * @param dst
+     * @param off
+     * @param len
+     */
+    private void readCompressed(MetaData md, int position, byte[] dst, int off, int len){
+    	if(len <= 0)
+    		return;
+    	int count = ChunkCodec.chunks(md.getSize());
+    	int first = position / ChunkCodec.CHUNK;
+    	int last = (position + len - 1) / ChunkCodec.CHUNK;
+    	
+    	// the end of the chunk before the first, up to that of the last
+    	int from = Math.max(first - 1, 0);
+    	byte[] table = new byte[(last - from + 1) * 4];
+    	this.readStored(md, md.getStoredSize() - count * 4 + from * 4, table, 0, table.length);
+    	int[] ends = ChunkCodec.ends(table, last - from + 1);
+    	int start = first == 0 ? 0 : ends[0];
+    	byte[] stored = new byte[ends[last - from] - start];
+    	this.readStored(md, start, stored, 0, stored.length);
+    	
+    	byte[] chunk = new byte[ChunkCodec.CHUNK];
+    	for(int c = first, at = start; c <= last; c++){
+    		int end = ends[c - from];
+    		int size = Math.min(ChunkCodec.CHUNK, md.getSize() - c * ChunkCodec.CHUNK);
+    		ChunkCodec.decode(stored, at - start, end - at, chunk, 0, size);
+    		int skip = position - c * ChunkCodec.CHUNK;
+    		int n = Math.min(size - skip, len);
+    		System.arraycopy(chunk, skip, dst, off, n);
+    		position += n;
+    		off += n;
+    		len -= n;
+    		at = end;
+    	}
+    }
+    
+    /**
+     * Write content to extents specified
+     * 
+     * @param extents
+     * @param content
+     */
+    public void writeFileContent2Disk(List<Extent> extents, byte[] content){
+        
+    	int index = 0;
+        
+    	// one transfer per extent
+    	for(Extent e : extents){
+    		long start = this.superblock.blockLocation(e.getStart());
+    		int bound = Math.min(e.getLength() * this.blockSize, content.length - index);
+    		this.disk.write(start, content, index, bound);
+    		if(this.checksums != null)
+    			this.checksums.store(e.getStart(), content, index, bound);
+    		index += bound;
+    	}
+    }
+    
+    /**
+     * Erase the data extents specified with 0x00000000
+     * 
+     * @param extents
+     */
+    public void eraseExtents(List<Extent> extents){
+        
+    	for(Extent e : extents){
+    		this.disk.fill(this.superblock.blockLocation(e.getStart()), (long) e.getLength() * this.blockSize, (byte) 0x00000000);
+    	}
+    }
+    
+    /**
+     * Erase disks with 0x00000000
+     * 
+     * @param start
+     * @param end
+     */
+    public void eraseDiskData(long start, long end){
+    	this.disk.fill(start, end - start, (byte) 0x00000000);
     }
     
 }
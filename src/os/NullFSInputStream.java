@@ -0,0 +1,98 @@
+package os;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a NullFS file block by block. Small reads are served from a
+ * read-ahead buffer refilled a few blocks at a time; reads at least as large
+ * as that buffer go straight into the caller's array.
+ * 
+ * The stream returns the bytes the file held when it was opened; once the
+ * file has been deleted further reads fail with an IOException.
+ */
+class NullFSInputStream extends InputStream {
+
+    private final NullFS fs;
+    private final MetaData md;
+    private final byte[] buffer;
+
+    private int position;     // file offset of the next byte returned
+    private int bufferStart;  // file offset of buffer[0]
+    private int bufferLength; // valid bytes in buffer
+    private boolean closed;
+
+    NullFSInputStream(NullFS fs, MetaData md, int readAhead) {
+        this.fs = fs;
+        this.md = md;
+        this.buffer = new byte[readAhead];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int remaining = md.getSize() - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        len = Math.min(len, remaining);
+
+        int buffered = bufferStart + bufferLength - position;
+        if (position < bufferStart || buffered <= 0) {
+            if (len >= buffer.length) {
+                read(position, b, off, len);
+                position += len;
+                return len;
+            }
+            fill();
+            buffered = bufferLength;
+        }
+        int n = Math.min(len, buffered);
+        System.arraycopy(buffer, position - bufferStart, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, md.getSize() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return closed ? 0 : md.getSize() - position;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private void fill() throws IOException {
+        bufferStart = position;
+        bufferLength = Math.min(buffer.length, md.getSize() - position);
+        read(position, buffer, 0, bufferLength);
+    }
+
+    private void read(int from, byte[] b, int off, int len) throws IOException {
+        if (!fs.read(md, from, b, off, len)) {
+            throw new IOException("file " + md.getFileName() + " was deleted");
+        }
+    }
+}
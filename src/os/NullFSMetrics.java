@@ -0,0 +1,287 @@
+package os;
+
+import hardware.DiskModel;
+import hardware.DiskTimer;
+import hardware.HDD;
+import hardware.IOCounters;
+import hardware.QueuedHDD;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Where a NullFS spends its time: per-operation counts and latencies, the
+ * transfers reaching the disk, the allocator's bitmap scanning, and the
+ * request queue, buffer cache and journal when those are in use.
+ * 
+ * Latencies and disk transfers are only recorded when the filesystem was
+ * opened with NullFSOptions.setMetrics(true); otherwise each operation pays
+ * a single branch and the figures stay at zero. The allocator, queue, cache
+ * and journal keep their counts either way.
+ * 
+ * With NullFSOptions.setDiskModel the disk transfers are also timed against
+ * a simulated device, whatever the metrics setting, and the simulated time
+ * is reported as "hdd.simulatedNanos".
+ * 
+ * snapshot() returns every figure by name; register() publishes the same
+ * figures, and the disk counters, as JMX MBeans.
+ */
+public class NullFSMetrics implements NullFSMetricsMXBean {
+
+    public enum Operation {
+        /** a newFile or newFiles call, from claiming slots to commit */
+        CREATE,
+        /** a delete or erase call, single or batch */
+        DELETE,
+        /** copying file data once the file is found */
+        READ,
+        /** an append call or stream write reaching the disk */
+        APPEND,
+        /** finding and locking a file by name or index */
+        LOOKUP
+    }
+
+    private final boolean enabled;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final IOCounters disk;
+    private final DiskTimer timer;
+    private final QueuedHDD queue;
+    private final BlockAllocator allocator;
+    private final BufferCache cache;
+    private final Journal journal;
+    private ObjectName[] registered;
+
+    /**
+     * @param enabled
+     * @param device the disk itself, below any queue or cache; given a
+     * recorder when enabled or timed
+     * @param model to time the disk against, or null
+     * @param queue or null
+     * @param allocator
+     * @param cache or null
+     * @param journal
+     */
+    NullFSMetrics(boolean enabled, HDD device, DiskModel model, QueuedHDD queue, BlockAllocator allocator,
+            BufferCache cache, Journal journal) {
+        this.enabled = enabled;
+        this.disk = enabled ? new IOCounters() : null;
+        this.timer = model != null ? new DiskTimer(model, disk) : null;
+        if (timer != null) {
+            device.setRecorder(timer);
+        } else if (enabled) {
+            device.setRecorder(disk);
+        }
+        this.queue = queue;
+        this.allocator = allocator;
+        this.cache = cache;
+        this.journal = journal;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Start timing an operation
+     * @return the start time, for end()
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void end(Operation op, long start) {
+        if (enabled) {
+            latencies[op.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public LatencyHistogram getLatency(Operation op) {
+        return latencies[op.ordinal()];
+    }
+
+    /**
+     * Transfers of the disk under the filesystem, below the buffer cache
+     * @return the counters, or null when metrics are disabled
+     */
+    public IOCounters getDiskCounters() {
+        return disk;
+    }
+
+    /**
+     * Simulated time of the disk transfers
+     * @return the timer, or null when no disk model was given
+     */
+    public DiskTimer getDiskTimer() {
+        return timer;
+    }
+
+    /**
+     * Every figure by name, e.g. "create.count", "read.p99Nanos",
+     * "hdd.seeks", "allocator.scannedWords", "cache.hits". Each value is
+     * read separately while the filesystem stays in use.
+     * @return names and values, in a stable order
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> s = new LinkedHashMap<String, Long>();
+        for (Operation op : Operation.values()) {
+            String name = op.name().toLowerCase();
+            LatencyHistogram h = getLatency(op);
+            s.put(name + ".count", h.getCount());
+            s.put(name + ".meanNanos", h.getMeanNanos());
+            s.put(name + ".p50Nanos", h.getPercentileNanos(0.5));
+            s.put(name + ".p99Nanos", h.getPercentileNanos(0.99));
+            s.put(name + ".maxNanos", h.getMaxNanos());
+        }
+        if (disk != null) {
+            s.put("hdd.reads", disk.getReads());
+            s.put("hdd.writes", disk.getWrites());
+            s.put("hdd.bytesRead", disk.getBytesRead());
+            s.put("hdd.bytesWritten", disk.getBytesWritten());
+            s.put("hdd.seeks", disk.getSeeks());
+            s.put("hdd.seekDistance", disk.getSeekDistance());
+            s.put("hdd.forces", disk.getForces());
+        }
+        if (timer != null) {
+            s.put("hdd.simulatedNanos", timer.getElapsedNanos());
+        }
+        s.put("allocator.allocations", allocator.allocations());
+        s.put("allocator.scannedWords", allocator.scannedWords());
+        s.put("allocator.probedRuns", allocator.probedRuns());
+        s.put("allocator.freeBlocks", (long) allocator.freeBlocks());
+        if (queue != null) {
+            s.put("queue.requests", queue.getRequests());
+            s.put("queue.merges", queue.getMerges());
+            s.put("queue.dispatches", queue.getDispatches());
+            s.put("queue.expired", queue.getExpired());
+        }
+        if (cache != null) {
+            s.put("cache.hits", cache.getHits());
+            s.put("cache.misses", cache.getMisses());
+            s.put("cache.evictions", cache.getEvictions());
+            s.put("cache.flushes", cache.getFlushes());
+        }
+        if (journal.isEnabled()) {
+            s.put("journal.operations", journal.getOperations());
+            s.put("journal.commits", journal.getCommits());
+        }
+        return s;
+    }
+
+    @Override
+    public Map<String, Long> getSnapshot() {
+        return snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (Operation op : Operation.values()) {
+            m.put(op.name().toLowerCase(), getLatency(op).getCount());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getMeanLatencyNanos() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (Operation op : Operation.values()) {
+            m.put(op.name().toLowerCase(), getLatency(op).getMeanNanos());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getP99LatencyNanos() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (Operation op : Operation.values()) {
+            m.put(op.name().toLowerCase(), getLatency(op).getPercentileNanos(0.99));
+        }
+        return m;
+    }
+
+    /**
+     * Clear the latencies, disk counters and simulated time; the
+     * allocator, queue, cache and journal counts are not reset
+     */
+    @Override
+    public void reset() {
+        for (LatencyHistogram h : latencies) {
+            h.reset();
+        }
+        if (disk != null) {
+            disk.reset();
+        }
+        if (timer != null) {
+            timer.reset();
+        }
+    }
+
+    /**
+     * Publish these metrics as nullfs:type=NullFS,name=name, and the disk
+     * counters as nullfs:type=HDD,name=name, with the platform MBean server
+     * @param name
+     * @throws JMException if the name is taken or not valid
+     */
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName fs = ObjectName.getInstance("nullfs:type=NullFS,name=" + ObjectName.quote(name));
+        server.registerMBean(this, fs);
+        if (disk == null) {
+            registered = new ObjectName[] { fs };
+            return;
+        }
+        ObjectName hdd = ObjectName.getInstance("nullfs:type=HDD,name=" + ObjectName.quote(name));
+        try {
+            server.registerMBean(disk, hdd);
+        } catch (JMException e) {
+            server.unregisterMBean(fs);
+            throw e;
+        }
+        registered = new ObjectName[] { fs, hdd };
+    }
+
+    /**
+     * Withdraw the MBeans published by register()
+     * @throws JMException
+     */
+    public synchronized void unregister() throws JMException {
+        if (registered == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName n : registered) {
+            server.unregisterMBean(n);
+        }
+        registered = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Operation op : Operation.values()) {
+            s.append(op.name().toLowerCase()).append(": ").append(getLatency(op)).append('\n');
+        }
+        if (disk != null) {
+            s.append("hdd: ").append(disk).append('\n');
+        }
+        if (timer != null) {
+            s.append("simulated: ").append(timer).append('\n');
+        }
+        if (queue != null) {
+            s.append("queue: ").append(queue).append('\n');
+        }
+        s.append("allocator: ").append(allocator.allocations()).append(" allocations, ")
+                .append(allocator.scannedWords()).append(" bitmap words scanned, ").append(allocator.probedRuns())
+                .append(" free runs probed");
+        return s.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package os;
+
+import java.util.Map;
+
+/**
+ * JMX view of NullFSMetrics
+ */
+public interface NullFSMetricsMXBean {
+
+    boolean isEnabled();
+
+    /**
+     * Every figure by name, see NullFSMetrics.snapshot()
+     */
+    Map<String, Long> getSnapshot();
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getMeanLatencyNanos();
+
+    Map<String, Long> getP99LatencyNanos();
+
+    void reset();
+}
@@ -0,0 +1,192 @@
+package os;
+
+import hardware.DiskModel;
+import hardware.IOScheduler;
+
+/**
+ * Optional settings for a NullFS instance, passed to NullFS.format or
+ * NullFS.mount. The defaults give the plain, uncached filesystem with a
+ * meta-data journal.
+ */
+public class NullFSOptions {
+
+    /**
+     * What happens to the data blocks of a deleted file
+     */
+    public enum DeleteMode {
+        /** the blocks are freed at once and keep their old contents */
+        FREE,
+        /** a background thread zeroes the blocks in large runs before they are reused */
+        DISCARD,
+        /** the blocks are zeroed and the disk forced before the delete returns */
+        SECURE
+    }
+
+    private int cacheBlocks = 0;
+    private boolean pinMetadata = true;
+    private int journalBlocks = 256;
+    private DeleteMode deleteMode = DeleteMode.FREE;
+    private boolean metrics = false;
+    private IOScheduler scheduler = null;
+    private int queueDepth = 32;
+    private DiskModel diskModel = null;
+    private boolean quickFormat = false;
+    private boolean dedup = false;
+    private boolean compression = false;
+    private boolean checksums = false;
+
+    /**
+     * Number of blocks held by the buffer cache, 0 disables the cache
+     */
+    public int getCacheBlocks() {
+        return cacheBlocks;
+    }
+
+    public void setCacheBlocks(int cacheBlocks) {
+        this.cacheBlocks = cacheBlocks;
+    }
+
+    /**
+     * Whether the superblock, bitmap and inode blocks are pinned in the
+     * buffer cache
+     */
+    public boolean isPinMetadata() {
+        return pinMetadata;
+    }
+
+    public void setPinMetadata(boolean pinMetadata) {
+        this.pinMetadata = pinMetadata;
+    }
+
+    /**
+     * Size of the meta-data journal in blocks, 0 disables journaling;
+     * format needs at least 1024 bytes. A transaction larger than the
+     * journal is logged to free data blocks borrowed for the commit, and is
+     * still atomic.
+     */
+    public int getJournalBlocks() {
+        return journalBlocks;
+    }
+
+    public void setJournalBlocks(int journalBlocks) {
+        this.journalBlocks = journalBlocks;
+    }
+
+    /**
+     * How deletes treat file data; Filesystem.eraseFile zeroes it whatever
+     * the mode
+     */
+    public DeleteMode getDeleteMode() {
+        return deleteMode;
+    }
+
+    public void setDeleteMode(DeleteMode deleteMode) {
+        this.deleteMode = deleteMode;
+    }
+
+    /**
+     * Whether operation latencies and disk transfers are recorded, see
+     * NullFSMetrics. The disk is given a recorder of its own.
+     */
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Order in which queued writes reach the disk, see QueuedHDD; null, the
+     * default, sends every write to the disk as it is made
+     */
+    public IOScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setScheduler(IOScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Writes the scheduler may hold and reorder, when one is set
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Device the disk transfers are timed against, see NullFSMetrics
+     * getDiskTimer; null, the default, times nothing
+     */
+    public DiskModel getDiskModel() {
+        return diskModel;
+    }
+
+    public void setDiskModel(DiskModel diskModel) {
+        this.diskModel = diskModel;
+    }
+
+    /**
+     * Whether format zeroes only the superblock, journal, bitmap and inode
+     * table, leaving the data blocks as the disk held them. Files only ever
+     * read what was written to them, so the old contents do not show; the
+     * format then takes time in proportion to the meta-data rather than the
+     * disk.
+     */
+    public boolean isQuickFormat() {
+        return quickFormat;
+    }
+
+    public void setQuickFormat(boolean quickFormat) {
+        this.quickFormat = quickFormat;
+    }
+
+    /**
+     * Whether format sets the disk up for deduplication: whole blocks of
+     * file data already stored are shared instead of written again, and
+     * kept until the last file using them is deleted, see DedupIndex. The
+     * table this needs takes 12 bytes per block. Fixed at format; mount
+     * follows the disk.
+     */
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    /**
+     * Whether files written from now on are stored compressed, in chunks
+     * read back independently (see ChunkCodec), when that saves blocks.
+     * Each file records how it is stored, so a disk holds both kinds and
+     * the setting may change from one mount to the next. Disks formatted
+     * before superblock version 5 store every file as it is.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Whether format sets the disk up with a CRC32C checksum of every data
+     * block and inode, checked whenever one is read (see BlockChecksums and
+     * Filesystem.scrub). The table takes 4 bytes per block and per inode.
+     * Fixed at format; mount follows the disk.
+     */
+    public boolean isChecksums() {
+        return checksums;
+    }
+
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+}
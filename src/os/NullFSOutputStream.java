@@ -0,0 +1,76 @@
+package os;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Appends to a NullFS file. Data is collected in a buffer of a few blocks
+ * and each full buffer is appended with NullFS.append, which allocates the
+ * blocks it needs at that point; writes at least as large as the buffer
+ * skip it. Appends made through other streams or NullFS.append in between
+ * are kept, each buffer goes after them.
+ */
+class NullFSOutputStream extends OutputStream {
+
+    private final NullFS fs;
+    private final MetaData md;
+    private final byte[] buffer;
+    private int count;
+    private boolean closed;
+
+    NullFSOutputStream(NullFS fs, MetaData md, int writeBehind) {
+        this.fs = fs;
+        this.md = md;
+        this.buffer = new byte[writeBehind];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len >= buffer.length) {
+            flush();
+            extend(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count) {
+            flush();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Write buffered data to the file.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            extend(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            flush();
+            closed = true;
+        }
+    }
+
+    private void extend(byte[] b, int off, int len) throws IOException {
+        if (!fs.append(md, b, off, len)) {
+            throw new IOException("no more space for file " + md.getFileName());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package os;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * What a scrub of a filesystem found, see Filesystem.scrub: the inodes and
+ * blocks that no longer match their checksums, and the blocks on which the
+ * bitmap and the inodes disagree. Operations wait while the scrub runs, so
+ * the figures describe one moment.
+ */
+public class ScrubReport {
+
+    private final boolean checksums;
+    private final TreeSet<Integer> corruptInodes = new TreeSet<Integer>();
+    private final TreeSet<Integer> corruptBlocks = new TreeSet<Integer>();
+    private final TreeSet<Integer> leakedBlocks = new TreeSet<Integer>();
+    private final TreeSet<Integer> unallocatedBlocks = new TreeSet<Integer>();
+    private int files;
+    private long checkedBlocks;
+    private long nanos;
+
+    ScrubReport(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    synchronized void addFiles(int count) {
+        files += count;
+    }
+
+    synchronized void addCheckedBlocks(int count) {
+        checkedBlocks += count;
+    }
+
+    synchronized void addCorruptInode(int slot) {
+        corruptInodes.add(slot);
+    }
+
+    synchronized void addCorruptBlock(int block) {
+        corruptBlocks.add(block);
+    }
+
+    synchronized void addLeakedBlock(int block) {
+        leakedBlocks.add(block);
+    }
+
+    synchronized void addUnallocatedBlock(int block) {
+        unallocatedBlocks.add(block);
+    }
+
+    void setNanos(long nanos) {
+        this.nanos = nanos;
+    }
+
+    /**
+     * Whether the disk keeps checksums; without them only the bitmap is
+     * checked against the inodes
+     * @return
+     */
+    public boolean isChecksummed() {
+        return checksums;
+    }
+
+    /**
+     * @return files whose inodes were read
+     */
+    public synchronized int getFileCount() {
+        return files;
+    }
+
+    /**
+     * @return data and pointer blocks read and checked against their
+     * checksums
+     */
+    public synchronized long getCheckedBlocks() {
+        return checkedBlocks;
+    }
+
+    /**
+     * Root directory slots whose inode does not match its checksum, or
+     * points outside the disk. The blocks of such a file are not known, so
+     * they show up as leaked.
+     * @return the slots in order
+     */
+    public synchronized List<Integer> getCorruptInodes() {
+        return Collections.unmodifiableList(new ArrayList<Integer>(corruptInodes));
+    }
+
+    /**
+     * Data and pointer blocks that do not match their checksums
+     * @return the blocks in order
+     */
+    public synchronized List<Integer> getCorruptBlocks() {
+        return Collections.unmodifiableList(new ArrayList<Integer>(corruptBlocks));
+    }
+
+    /**
+     * Blocks the bitmap shows in use that no file points to; they stay
+     * allocated until the disk is formatted again
+     * @return the blocks in order
+     */
+    public synchronized List<Integer> getLeakedBlocks() {
+        return Collections.unmodifiableList(new ArrayList<Integer>(leakedBlocks));
+    }
+
+    /**
+     * Blocks a file points to that the bitmap shows free, and so may be
+     * handed to another file
+     * @return the blocks in order
+     */
+    public synchronized List<Integer> getUnallocatedBlocks() {
+        return Collections.unmodifiableList(new ArrayList<Integer>(unallocatedBlocks));
+    }
+
+    /**
+     * @return whether nothing was found wrong
+     */
+    public synchronized boolean isClean() {
+        return corruptInodes.isEmpty() && corruptBlocks.isEmpty() && leakedBlocks.isEmpty() && unallocatedBlocks.isEmpty();
+    }
+
+    /**
+     * @return time the scrub took, operations waiting meanwhile
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("Files: ").append(files).append(", blocks checked: ")
+                .append(checksums ? String.valueOf(checkedBlocks) : "none, no checksums")
+                .append(", in ").append(nanos / 1000000).append(" ms").append('\n');
+        s.append("Corrupt inodes: ").append(corruptInodes.size()).append(", corrupt blocks: ").append(corruptBlocks.size())
+                .append(", leaked blocks: ").append(leakedBlocks.size())
+                .append(", unallocated blocks: ").append(unallocatedBlocks.size());
+        append(s, "corrupt inode slots", corruptInodes);
+        append(s, "corrupt blocks", corruptBlocks);
+        append(s, "leaked blocks", leakedBlocks);
+        append(s, "unallocated blocks", unallocatedBlocks);
+        return s.toString();
+    }
+
+    /**
+     * Add the first few numbers of a non-empty set as a line of its own
+     */
+    private static void append(StringBuilder s, String what, TreeSet<Integer> numbers) {
+        if (numbers.isEmpty()) {
+            return;
+        }
+        s.append('\n').append("  ").append(what).append(':');
+        int shown = 0;
+        for (int n : numbers) {
+            if (shown++ == 16) {
+                s.append(" ...");
+                break;
+            }
+            s.append(' ').append(n);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package os;
+
+import hardware.HDD;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The pass behind NullFS.scrub, spread over a ForkJoinPool. The inode pass
+ * reads the inode table, a chunk per task, checks each inode and collects
+ * the blocks its file points to; the block pass then goes over the disk, a
+ * chunk per task, comparing the bitmap with the blocks collected and
+ * checking each block in use against its checksum with one read of the
+ * chunk. Tasks split until a chunk is left, so both passes keep every
+ * processor of the pool busy and a large disk is scrubbed in about
+ * 1 / processors of the time one thread takes.
+ *
+ * Reads go through the journal, so committed changes not yet in place are
+ * seen; the caller keeps operations from running meanwhile.
+ */
+class Scrubber {
+
+    /** Bytes of inodes, or of blocks, one task reads in one transfer */
+    private static final int CHUNK = 1 << 20;
+
+    private final NullFS fs;
+    private final HDD disk;
+    private final Superblock superblock;
+    private final BlockChecksums checksums; // null when the disk keeps none
+    private final long[] bitmap;
+    private final int blockSize;
+    private final ScrubReport report;
+
+    // blocks the files point to, and the bytes a file keeps in its last block when not all of it
+    private final BitSet referenced = new BitSet();
+    private final HashMap<Integer, Integer> tails = new HashMap<Integer, Integer>();
+
+    /**
+     * @param fs
+     * @param disk the journal, for reads
+     * @param superblock
+     * @param checksums null when the disk keeps none
+     * @param bitmap the bitmap as on disk, see BlockAllocator.snapshot
+     */
+    Scrubber(NullFS fs, HDD disk, Superblock superblock, BlockChecksums checksums, long[] bitmap) {
+        this.fs = fs;
+        this.disk = disk;
+        this.superblock = superblock;
+        this.checksums = checksums;
+        this.bitmap = bitmap;
+        this.blockSize = superblock.getBlockSize();
+        this.report = new ScrubReport(checksums != null);
+    }
+
+    /**
+     * Run the inode pass, then the block pass.
+     * @param pool
+     * @return what they found
+     */
+    ScrubReport run(ForkJoinPool pool) {
+        pool.invoke(new InodeScan(0, superblock.getRootDirSize()));
+        pool.invoke(new BlockScan(0, superblock.getTotalBlocks()));
+        return report;
+    }
+
+    private class InodeScan extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int first;
+        private final int count;
+
+        InodeScan(int first, int count) {
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count > Math.max(1, CHUNK / superblock.getMetadataLength())) {
+                int half = count / 2;
+                invokeAll(new InodeScan(first, half), new InodeScan(first + half, count - half));
+            } else {
+                scanInodes(first, count);
+            }
+        }
+    }
+
+    private class BlockScan extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        BlockScan(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > Math.max(1, CHUNK / blockSize)) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BlockScan(from, mid), new BlockScan(mid, to));
+            } else {
+                scanBlocks(from, to);
+            }
+        }
+    }
+
+    /**
+     * Check the inodes of count slots from first, read with one transfer,
+     * and add the blocks of their files to the ones referenced.
+     */
+    private void scanInodes(int first, int count) {
+        int len = superblock.getMetadataLength();
+        byte[] table = new byte[count * len];
+        disk.read(superblock.inodeLocation(first), table, 0, table.length);
+
+        BitSet found = new BitSet();
+        HashMap<Integer, Integer> ends = new HashMap<Integer, Integer>();
+        int files = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] inode = Arrays.copyOfRange(table, i * len, i * len + fs.inodeLength());
+            MetaData md;
+            try {
+                md = fs.decodeMetaData(superblock.inodeLocation(first + i), inode);
+            } catch (ChecksumException e) {
+                report.addCorruptInode(first + i);
+                continue;
+            }
+            if (md == null) {
+                continue;
+            }
+            files++;
+            if (!addBlocks(md.getPointerBlocks(), found) || !addExtents(md.getExtents(), found)) {
+                report.addCorruptInode(first + i);
+                continue;
+            }
+            try {
+                fs.loadExtents(md);
+            } catch (ChecksumException e) {
+                continue; // the pointer block is reported by the block pass, the blocks it lists as leaked
+            } catch (RuntimeException e) {
+                report.addCorruptInode(first + i); // a pointer past the end of the disk
+                continue;
+            }
+            if (!addBlocks(md.getPointerBlocks(), found) || !addExtents(md.getExtents(), found)) {
+                report.addCorruptInode(first + i);
+                continue;
+            }
+            int stored = md.getStoredSize() > 0 ? md.getStoredSize() : md.getSize();
+            int last = blockAt(md.getExtents(), (stored - 1) / blockSize);
+            if (md.getInlineData() == null && stored % blockSize != 0 && last >= 0) {
+                ends.put(last, stored % blockSize);
+            }
+        }
+
+        report.addFiles(files);
+        synchronized (this) {
+            referenced.or(found);
+            tails.putAll(ends);
+        }
+    }
+
+    /**
+     * Compare the bitmap with the blocks referenced over [from, to), and
+     * check the referenced ones against their checksums with one read.
+     */
+    private void scanBlocks(int from, int to) {
+        for (int b = from; b < to; b++) {
+            boolean used = (bitmap[b >>> 6] & (1L << b)) != 0;
+            if (used && !referenced.get(b)) {
+                report.addLeakedBlock(b);
+            } else if (!used && referenced.get(b)) {
+                report.addUnallocatedBlock(b);
+            }
+        }
+        int first = referenced.nextSetBit(from);
+        if (checksums == null || first < 0 || first >= to) {
+            return;
+        }
+        int last = referenced.previousSetBit(to - 1);
+        byte[] blocks = new byte[(last - first + 1) * blockSize];
+        disk.read(superblock.blockLocation(first), blocks, 0, blocks.length);
+        int checked = 0;
+        for (int b = first; b >= 0 && b <= last; b = referenced.nextSetBit(b + 1)) {
+            Integer tail = tails.get(b);
+            if (!checksums.matches(b, blocks, (b - first) * blockSize, tail == null ? blockSize : tail)) {
+                report.addCorruptBlock(b);
+            }
+            checked++;
+        }
+        report.addCheckedBlocks(checked);
+    }
+
+    /**
+     * @return false if a block lies outside the disk
+     */
+    private boolean addBlocks(List<Integer> blocks, BitSet found) {
+        for (int b : blocks) {
+            if (b < 0 || b >= superblock.getTotalBlocks()) {
+                return false;
+            }
+            found.set(b);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if an extent reaches outside the disk
+     */
+    private boolean addExtents(List<Extent> extents, BitSet found) {
+        for (Extent e : extents) {
+            if (e.getStart() < 0 || e.getLength() < 0 || e.getEnd() > superblock.getTotalBlocks() || e.getEnd() < 0) {
+                return false;
+            }
+            found.set(e.getStart(), e.getEnd());
+        }
+        return true;
+    }
+
+    /**
+     * @return the block holding block fileBlock of a file, or -1
+     */
+    private static int blockAt(List<Extent> extents, int fileBlock) {
+        for (Extent e : extents) {
+            if (fileBlock < e.getLength()) {
+                return e.getStart() + fileBlock;
+            }
+            fileBlock -= e.getLength();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,315 @@
+package os;
+
+import hardware.HDD;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory copy of the filesystem header. It is read once when the
+ * filesystem is opened; changed fields are marked dirty and written back
+ * together, as one transfer, by writeBack().
+ * 
+ * All methods are synchronized, so the counters can be updated from several
+ * threads; nextFileIndex() and nextFileIndexes() hand out file indexes
+ * atomically.
+ * 
+ * superblock: |- bitmap length 4 bytes -|- total number of blocks 4 bytes -|- number of blocks used 4 bytes -|- number of files 4 bytes -|- length of metadata 4 bytes -|- block size 4 bytes -|- root directory size 4 bytes -|- journal length 4 bytes -|- magic 4 bytes -|- version 4 bytes -|- disk size 8 bytes -|- dedup table length 8 bytes -|- checksum table length 8 bytes -|
+ * 
+ * Version 1 images end the superblock after the journal length, at byte 32,
+ * and start the journal there; they are recognized by the missing magic
+ * number and opened with the same layout. Versions 2 and 3 end it after the
+ * disk size, at byte 48. Version 3 adds files stored inline in their inode,
+ * which only images of that version or later may hold, and version 4 the
+ * dedup table (see DedupIndex) between the bitmap and the inodes, of length
+ * 0 when deduplication is off. Version 5 adds the stored size of a
+ * compressed file to the inode, and version 6 the checksum table (see
+ * BlockChecksums) between the dedup table and the inodes, of length 0 when
+ * checksums are off; versions 4 and 5 end the superblock after the dedup
+ * table length, at byte 56. Version 7 starts the data blocks at the next
+ * multiple of the block size after the inodes, so that each falls in one
+ * block of the buffer cache. Every disk position is a long; block
+ * numbers and the other fields stay 32 bits in all versions.
+ */
+class Superblock {
+
+    /** Bytes the superblock occupies at the start of the disk */
+    static final int SIZE = 64;
+
+    /** Bytes of a version 1 superblock, which had no magic or version */
+    static final int V1_SIZE = 32;
+
+    /** Bytes of a version 2 or 3 superblock, which had no dedup table */
+    static final int V2_SIZE = 48;
+
+    /** Bytes of a version 4 or 5 superblock, which had no checksum table */
+    static final int V4_SIZE = 56;
+
+    /** Version written by create() */
+    static final int VERSION = 7;
+
+    /** First version whose inodes may hold file data */
+    static final int INLINE_VERSION = 3;
+
+    /** First version with a dedup table */
+    static final int DEDUP_VERSION = 4;
+
+    /** First version whose inodes record the stored size of compressed files */
+    static final int COMPRESSION_VERSION = 5;
+
+    /** First version with a checksum table */
+    static final int CHECKSUM_VERSION = 6;
+
+    /** First version whose data blocks start on a block boundary */
+    static final int ALIGNED_VERSION = 7;
+
+    private static final int MAGIC_NUMBER = 0x4E465342;
+
+    // field offsets
+    private static final int BITMAP_LENGTH = 0;
+    private static final int TOTAL_BLOCKS = 4;
+    private static final int USED_BLOCKS = 8;
+    private static final int FILE_COUNT = 12;
+    private static final int METADATA_LENGTH = 16;
+    private static final int BLOCK_SIZE = 20;
+    private static final int ROOT_DIR_SIZE = 24;
+    private static final int JOURNAL_LENGTH = 28;
+    private static final int MAGIC = 32;
+    private static final int FORMAT_VERSION = 36;
+    private static final int DISK_SIZE = 40;
+    private static final int DEDUP_LENGTH = 48;
+    private static final int CHECKSUM_LENGTH = 56;
+
+    private final HDD disk;
+    private final ByteBuffer fields = ByteBuffer.allocate(SIZE);
+    private int length = SIZE;
+
+    // dirty byte range [dirtyFrom, dirtyTo)
+    private int dirtyFrom = SIZE;
+    private int dirtyTo = 0;
+
+    private Superblock(HDD disk) {
+        this.disk = disk;
+    }
+
+    /**
+     * Superblock for a freshly formatted disk; nothing is written until
+     * writeBack().
+     */
+    static Superblock create(HDD disk, int bitmapLength, int totalBlocks, int metadataLength,
+            int blockSize, int rootDirSize, int journalLength, long diskSize, long dedupLength, long checksumLength) {
+        Superblock sb = new Superblock(disk);
+        sb.set(BITMAP_LENGTH, bitmapLength);
+        sb.set(TOTAL_BLOCKS, totalBlocks);
+        sb.set(USED_BLOCKS, 0);
+        sb.set(FILE_COUNT, 0);
+        sb.set(METADATA_LENGTH, metadataLength);
+        sb.set(BLOCK_SIZE, blockSize);
+        sb.set(ROOT_DIR_SIZE, rootDirSize);
+        sb.set(JOURNAL_LENGTH, journalLength);
+        sb.set(MAGIC, MAGIC_NUMBER);
+        sb.set(FORMAT_VERSION, VERSION);
+        sb.fields.putLong(DISK_SIZE, diskSize);
+        sb.fields.putLong(DEDUP_LENGTH, dedupLength);
+        sb.fields.putLong(CHECKSUM_LENGTH, checksumLength);
+        sb.dirtyFrom = 0;
+        sb.dirtyTo = SIZE;
+        return sb;
+    }
+
+    /**
+     * Read the superblock stored at the start of disk, of either version.
+     * @throws RuntimeException if it was written by a later version
+     */
+    static Superblock load(HDD disk) {
+        Superblock sb = new Superblock(disk);
+        disk.read(0, sb.fields.array(), 0, (int) Math.min(SIZE, disk.capacity()));
+        if (sb.fields.getInt(MAGIC) != MAGIC_NUMBER) {
+            // version 1: what follows the fields is the journal
+            sb.length = V1_SIZE;
+            sb.fields.putInt(FORMAT_VERSION, 1);
+            sb.fields.putLong(DISK_SIZE, disk.capacity());
+            sb.fields.putLong(DEDUP_LENGTH, 0);
+            sb.fields.putLong(CHECKSUM_LENGTH, 0);
+        } else if (sb.getVersion() > VERSION) {
+            throw new RuntimeException("NullFS version " + sb.getVersion() + " is not supported");
+        } else if (sb.getVersion() < DEDUP_VERSION) {
+            // what follows the disk size is the journal
+            sb.length = V2_SIZE;
+            sb.fields.putLong(DEDUP_LENGTH, 0);
+            sb.fields.putLong(CHECKSUM_LENGTH, 0);
+        } else if (sb.getVersion() < CHECKSUM_VERSION) {
+            // what follows the dedup table length is the journal
+            sb.length = V4_SIZE;
+            sb.fields.putLong(CHECKSUM_LENGTH, 0);
+        }
+        return sb;
+    }
+
+    /**
+     * Check that the fields describe a filesystem that fits on a disk of
+     * the given size; a disk without the magic number only has the fields
+     * to go by.
+     * @param capacity disk size in bytes
+     * @throws RuntimeException if they do not
+     */
+    synchronized void check(long capacity) {
+        int total = getTotalBlocks();
+        if (getBlockSize() <= 0 || getRootDirSize() <= 0 || getMetadataLength() <= 0 || getJournalLength() < 0
+                || total <= 0 || getBitmapLength() < BlockAllocator.bytesFor(total)
+                || getUsedBlocks() < 0 || getUsedBlocks() > total || getFileCount() < 0
+                || (getDedupLength() != 0 && getDedupLength() != DedupIndex.bytesFor(total))
+                || (getChecksumLength() != 0 && getChecksumLength() != BlockChecksums.bytesFor(total, getRootDirSize()))) {
+            throw new RuntimeException("no NullFS found on this disk");
+        }
+        long end = blockLocation(0) + (long) total * getBlockSize();
+        if (end > capacity || getDiskSize() > capacity) {
+            throw new RuntimeException("disk of " + capacity + " bytes is smaller than the filesystem on it, "
+                    + Math.max(end, getDiskSize()) + " bytes");
+        }
+    }
+
+    synchronized int getVersion() {
+        return fields.getInt(FORMAT_VERSION);
+    }
+
+    /** Disk size the filesystem was formatted for */
+    synchronized long getDiskSize() {
+        return fields.getLong(DISK_SIZE);
+    }
+
+    /** Bytes of the dedup table, 0 when deduplication is off */
+    synchronized long getDedupLength() {
+        return fields.getLong(DEDUP_LENGTH);
+    }
+
+    /** Bytes of the checksum table, 0 when checksums are off */
+    synchronized long getChecksumLength() {
+        return fields.getLong(CHECKSUM_LENGTH);
+    }
+
+    synchronized int getBitmapLength() {
+        return fields.getInt(BITMAP_LENGTH);
+    }
+
+    synchronized int getTotalBlocks() {
+        return fields.getInt(TOTAL_BLOCKS);
+    }
+
+    synchronized int getUsedBlocks() {
+        return fields.getInt(USED_BLOCKS);
+    }
+
+    synchronized void setUsedBlocks(int used) {
+        set(USED_BLOCKS, used);
+    }
+
+    synchronized int getFileCount() {
+        return fields.getInt(FILE_COUNT);
+    }
+
+    synchronized void setFileCount(int count) {
+        set(FILE_COUNT, count);
+    }
+
+    /**
+     * Count one more file and return the count as the new file's index.
+     */
+    synchronized int nextFileIndex() {
+        int index = getFileCount() + 1;
+        set(FILE_COUNT, index);
+        return index;
+    }
+
+    /**
+     * Count count more files at once, see nextFileIndex().
+     * @return index of the first of them, the rest following in order
+     */
+    synchronized int nextFileIndexes(int count) {
+        int first = getFileCount() + 1;
+        set(FILE_COUNT, first + count - 1);
+        return first;
+    }
+
+    synchronized int getMetadataLength() {
+        return fields.getInt(METADATA_LENGTH);
+    }
+
+    synchronized int getBlockSize() {
+        return fields.getInt(BLOCK_SIZE);
+    }
+
+    synchronized int getRootDirSize() {
+        return fields.getInt(ROOT_DIR_SIZE);
+    }
+
+    synchronized int getJournalLength() {
+        return fields.getInt(JOURNAL_LENGTH);
+    }
+
+    /** Disk position of the journal region */
+    long journalStart() {
+        return length;
+    }
+
+    /** Disk position of the block bitmap */
+    long bitmapStart() {
+        return journalStart() + getJournalLength();
+    }
+
+    /** Disk position of the dedup table */
+    long dedupStart() {
+        return bitmapStart() + getBitmapLength();
+    }
+
+    /** Disk position of the checksum table */
+    long checksumStart() {
+        return dedupStart() + getDedupLength();
+    }
+
+    /** Disk position of the inode in the given root directory slot */
+    long inodeLocation(int slot) {
+        return checksumStart() + getChecksumLength() + (long) getMetadataLength() * slot;
+    }
+
+    /** Disk position of data block 0 */
+    long dataStart() {
+        long end = inodeLocation(getRootDirSize());
+        if (getVersion() < ALIGNED_VERSION) {
+            return end;
+        }
+        int blockSize = getBlockSize();
+        return (end + blockSize - 1) / blockSize * blockSize;
+    }
+
+    /** Disk position of the given data block */
+    long blockLocation(int block) {
+        return dataStart() + (long) block * getBlockSize();
+    }
+
+    synchronized boolean isDirty() {
+        return dirtyFrom < dirtyTo;
+    }
+
+    /**
+     * Write every dirty field to disk in one transfer.
+     * @return whether anything was written
+     */
+    synchronized boolean writeBack() {
+        if (!isDirty()) {
+            return false;
+        }
+        disk.write(dirtyFrom, fields.array(), dirtyFrom, dirtyTo - dirtyFrom);
+        dirtyFrom = SIZE;
+        dirtyTo = 0;
+        return true;
+    }
+
+    private synchronized void set(int offset, int value) {
+        if (fields.getInt(offset) == value) {
+            return;
+        }
+        fields.putInt(offset, value);
+        dirtyFrom = Math.min(dirtyFrom, offset);
+        dirtyTo = Math.max(dirtyTo, offset + 4);
+    }
+}